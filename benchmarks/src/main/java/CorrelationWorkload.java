@@ -0,0 +1,66 @@
+import bench.Workload;
+
+import java.util.Arrays;
+
+/**
+ * One row of the matrix with correlationFastLookUp or correlationWithPrecomputedMeansFastLookUp: the ratings of
+ * the next user go in the look up array and the user is correlated with every user, like in
+ * PearsonsCorrelation.computeNeighbors.
+ */
+public class CorrelationWorkload implements Workload {
+
+    private final PearsonsCorrelation kernels = new PearsonsCorrelation();
+    private final int numUsers;
+    private final int[] ratingOffsets;
+    private final int[] ratingMovieIDs;
+    private final float[] ratingValues;
+    //null for correlationFastLookUp
+    private final float[] means;
+    private final float[] lookUpArray;
+    private int user = 0;
+
+    /**
+     * @param args the dataset and "true" for correlationWithPrecomputedMeansFastLookUp
+     */
+    public CorrelationWorkload(String[] args) {
+        MovieHandler ratings = SyntheticRatings.ratings(args[0]);
+        this.numUsers = ratings.getNumUsers();
+        this.ratingOffsets = ratings.getRatingOffsets();
+        this.ratingMovieIDs = ratings.getRatingMovieIDs();
+        this.ratingValues = ratings.getRatingValues();
+        this.means = args[1].equals("true") ? kernels.precomputeUsersMeansInternalIDs(ratings) : null;
+        int maxMovieID = ratings.getMovieIDs().get(ratings.getNumMovies() - 1); //movies are sorted
+        this.lookUpArray = new float[maxMovieID + 1];
+        Arrays.fill(lookUpArray, -1f);
+    }
+
+    @Override
+    public double run() {
+        int i = user;
+        user = (user + 1) % numUsers;
+        for (int k = ratingOffsets[i]; k < ratingOffsets[i + 1]; k++) {
+            lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
+        }
+
+        double sum = 0;
+        for (int j = 0; j < numUsers; j++) {
+            double cor;
+            if (means == null) {
+                cor = kernels.correlationFastLookUp(ratingOffsets[j], ratingOffsets[j + 1], ratingMovieIDs,
+                        ratingValues, lookUpArray, -1f, 1);
+            } else {
+                cor = kernels.correlationWithPrecomputedMeansFastLookUp(ratingOffsets[j], ratingOffsets[j + 1],
+                        ratingMovieIDs, ratingValues, lookUpArray, -1f, 1, means[i], means[j]);
+            }
+            if (cor == cor) {
+                sum += cor;
+            }
+        }
+
+        for (int k = ratingOffsets[i]; k < ratingOffsets[i + 1]; k++) {
+            lookUpArray[ratingMovieIDs[k]] = -1f;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,57 @@
+import bench.Workload;
+
+import java.io.PrintStream;
+
+/**
+ * Fills and empties the lower triangle of a SerializableListManager the way computeCorrelationsFastLookup does:
+ * row i reads list i, deletes it and appends one element to every later list.
+ * <p>
+ * The memory budget is a size like 1m, 0 or "memory". With 0 the manager behaves like -spillMemory 0: the lists
+ * only grow into memory freed by deleteList, the rest spills. With "memory" every list gets room for all its
+ * elements up front (resize constant numLists), so nothing spills and only the in-memory add/get path is measured.
+ */
+public class ListManagerWorkload implements Workload {
+
+    private final int numLists;
+    private final int resizeConstant;
+    private final long memoryBudget;
+
+    /**
+     * @param args number of lists and the memory budget (a size like 1m, 0 or memory)
+     */
+    public ListManagerWorkload(String[] args) {
+        this.numLists = Integer.parseInt(args[0]);
+        boolean inMemory = args[1].equals("memory");
+        this.resizeConstant = inMemory ? numLists : 50;
+        this.memoryBudget = inMemory || args[1].equals("0") ? 0 : PearsonsCorrelation.parseByteSize(args[1]);
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Not a size: " + args[1]);
+        }
+    }
+
+    @Override
+    public double run() {
+        //The manager reports temp files and spill statistics
+        PrintStream out = System.out;
+        System.setOut(SyntheticRatings.SILENT);
+        try {
+            SerializableListManager lists = new SerializableListManager(numLists, resizeConstant, memoryBudget, 4,
+                    64L << 20);
+            long sum = 0;
+            for (int i = 0; i < numLists; i++) {
+                for (int j = 0; j < i; j++) {
+                    sum += lists.getElementFromList(i, j);
+                }
+                lists.deleteList(i);
+                for (int j = i + 1; j < numLists; j++) {
+                    lists.addElementToList(j, (short) (i * 31 + j));
+                }
+            }
+            lists.close();
+            return sum;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+}
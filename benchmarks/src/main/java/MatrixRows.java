@@ -0,0 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A row of the matrix with as many values as a dataset has users, with a realistic share of NaN values.
+ */
+class MatrixRows {
+
+    /**
+     * @return the encoded values of the row, see CorrelationMatrixWriter
+     */
+    static short[] values(String dataset) {
+        int numUsers = SyntheticRatings.size(dataset)[0];
+        Random random = new Random(numUsers);
+        short[] row = new short[numUsers];
+        for (int j = 0; j < numUsers; j++) {
+            //Most pairs share too few movies
+            row[j] = random.nextInt(10) < 6 ? Short.MAX_VALUE : (short) (random.nextInt(20001) - 10000);
+        }
+        return row;
+    }
+
+    /**
+     * @return the row as written by the text CorrelationMatrixWriter, without the header lines
+     */
+    static byte[] text(String dataset) {
+        short[] row = values(dataset);
+        try {
+            File file = File.createTempFile("bdap3-row", ".matrix");
+            try {
+                CorrelationMatrixWriter writer = CorrelationMatrixWriter.open(file.getPath(), row.length, false, 1,
+                        false, 0);
+                for (short val : row) {
+                    writer.add(val);
+                }
+                writer.endRow();
+                writer.close();
+
+                byte[] bytes = Files.readAllBytes(file.toPath());
+                //Skip the number of users and the parameters
+                int start = 0;
+                for (int line = 0; line < 2; line++) {
+                    while (bytes[start] != '\n') {
+                        start++;
+                    }
+                    start++;
+                }
+                return Arrays.copyOfRange(bytes, start, bytes.length);
+            } finally {
+                file.delete();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't write a matrix row", e);
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+import bench.Workload;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One text row parsed into the best kNN neighbors with PearsonsCorrelation.parseOneCorrelationLine.
+ */
+public class ParseLineWorkload implements Workload {
+
+    private final ByteBuffer bytes;
+    private final int end;
+    private final NeighborHeap heap;
+
+    /**
+     * @param args the dataset and kNN
+     */
+    public ParseLineWorkload(String[] args) {
+        byte[] line = MatrixRows.text(args[0]);
+        this.bytes = ByteBuffer.wrap(line);
+        //Up to the newline
+        this.end = line.length - 1;
+        this.heap = new NeighborHeap(Integer.parseInt(args[1]));
+    }
+
+    @Override
+    public double run() {
+        heap.clear();
+        PearsonsCorrelation.parseOneCorrelationLine(bytes, 0, end, heap);
+        return heap.size();
+    }
+
+}
@@ -0,0 +1,75 @@
+import bench.Workload;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Predicts a fixed list of user/movie combinations with MovieRunner.predictRating. The neighbors of every user
+ * are computed up front with PearsonsCorrelation.computeNeighbors, the same neighbors a matrix file would give.
+ */
+public class PredictWorkload implements Workload {
+
+    private final int[] userIDs;
+    private final int[] movieIDs;
+
+    /**
+     * @param args the dataset, kNN and the number of predictions of one run()
+     */
+    public PredictWorkload(String[] args) throws Exception {
+        final MovieHandler ratings = SyntheticRatings.ratings(args[0]);
+        final int kNN = Math.min(Integer.parseInt(args[1]), ratings.getNumUsers() - 1);
+        final int numUsers = ratings.getNumUsers();
+        final NeighborTable table = new NeighborTable(numUsers, kNN, false);
+
+        //Rows are independent, every thread computes every nThreads-th row with its own scratch space
+        final int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> rows = new ArrayList<Future<?>>();
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            rows.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    PearsonsCorrelation kernels = new PearsonsCorrelation();
+                    int maxMovieID = ratings.getMovieIDs().get(ratings.getNumMovies() - 1); //movies are sorted
+                    float[] lookUpArray = new float[maxMovieID + 1];
+                    Arrays.fill(lookUpArray, -1f);
+                    int[] commonRatedMovies = new int[numUsers];
+                    NeighborHeap heap = new NeighborHeap(kNN);
+                    int[] ids = new int[kNN];
+                    short[] values = new short[kNN];
+                    for (int i = first; i < numUsers; i += numThreads) {
+                        kernels.computeNeighbors(i, ratings, null, lookUpArray, -1f, 1, commonRatedMovies, heap);
+                        table.setNeighbors(i, ids, values, heap.drainSorted(ids, values));
+                    }
+                }
+            }));
+        }
+        for (Future<?> row : rows) {
+            row.get();
+        }
+        pool.shutdown();
+        table.pack();
+
+        MovieRunner.ratings = ratings;
+        MovieRunner.recommender = new Recommender(ratings, table, false);
+
+        int[][] pairs = SyntheticRatings.testPairs(args[0], Integer.parseInt(args[2]));
+        this.userIDs = pairs[0];
+        this.movieIDs = pairs[1];
+    }
+
+    @Override
+    public double run() {
+        double sum = 0;
+        for (int p = 0; p < userIDs.length; p++) {
+            sum += MovieRunner.predictRating(userIDs[p], movieIDs[p]);
+        }
+        return sum;
+    }
+
+}
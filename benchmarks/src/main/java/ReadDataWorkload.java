@@ -0,0 +1,24 @@
+import bench.Workload;
+
+/**
+ * Reads a rating file with MovieHandler.readData, through the constructor without snapshot.
+ */
+public class ReadDataWorkload implements Workload {
+
+    private final String dataset;
+
+    /**
+     * @param args the dataset
+     */
+    public ReadDataWorkload(String[] args) {
+        this.dataset = args[0];
+        //Generate the file before the measurements
+        SyntheticRatings.file(dataset);
+    }
+
+    @Override
+    public double run() {
+        return SyntheticRatings.ratings(dataset).getNumUsers();
+    }
+
+}
@@ -0,0 +1,34 @@
+import bench.Workload;
+
+import java.io.IOException;
+
+/**
+ * One row through the text CorrelationMatrixWriter, whose add() is shortToChar, written to /dev/null.
+ */
+public class ShortToCharWorkload implements Workload {
+
+    private final short[] row;
+    private final CorrelationMatrixWriter writer;
+
+    /**
+     * @param args the dataset
+     */
+    public ShortToCharWorkload(String[] args) throws IOException {
+        this.row = MatrixRows.values(args[0]);
+        this.writer = CorrelationMatrixWriter.open("/dev/null", row.length, false, 1, false, 0);
+    }
+
+    @Override
+    public double run() {
+        for (short val : row) {
+            writer.add(val);
+        }
+        try {
+            writer.endRow();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return row.length;
+    }
+
+}
@@ -0,0 +1,142 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixed synthetic rating files for the benchmarks, in the MovieLens user::movie::rating::timestamp format.
+ * <p>
+ * The datasets are generated from a fixed seed, so every run and every machine benchmarks the same data:
+ *      small:   1000 users,  1000 movies,  ~50 ratings per user
+ *      medium:  5000 users,  4000 movies, ~100 ratings per user
+ *      large:  20000 users, 10000 movies, ~100 ratings per user
+ * Movie popularity is skewed (a few movies get most ratings, like in MovieLens) and ratings are multiples of 0.5
+ * made of a user bias, a movie bias and noise. A file is generated once in java.io.tmpdir and reused.
+ */
+class SyntheticRatings {
+
+    private static final long SEED = 42;
+
+    /**
+     * @param dataset small, medium or large
+     * @return { number of users, number of movies, average number of ratings per user }
+     */
+    static int[] size(String dataset) {
+        if (dataset.equals("small")) {
+            return new int[]{1000, 1000, 50};
+        } else if (dataset.equals("medium")) {
+            return new int[]{5000, 4000, 100};
+        } else if (dataset.equals("large")) {
+            return new int[]{20000, 10000, 100};
+        }
+        throw new IllegalArgumentException("Unknown dataset " + dataset + ", possible are small, medium and large.");
+    }
+
+    /**
+     * Returns the rating file of a dataset, generating it if needed.
+     *
+     * @param dataset small, medium or large
+     * @return path of the rating file
+     */
+    static synchronized String file(String dataset) {
+        int[] size = size(dataset);
+        File file = new File(System.getProperty("java.io.tmpdir"), "bdap3-synthetic-" + dataset + ".ratings");
+        if (file.isFile()) {
+            return file.getPath();
+        }
+
+        int numUsers = size[0];
+        int numMovies = size[1];
+        int ratingsPerUser = size[2];
+        Random random = new Random(SEED + numUsers);
+        double[] movieBias = new double[numMovies + 1];
+        for (int m = 1; m <= numMovies; m++) {
+            movieBias[m] = 0.5 * random.nextGaussian();
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(temporary))) {
+            boolean[] rated = new boolean[numMovies + 1];
+            int[] movies = new int[numMovies];
+            for (int u = 1; u <= numUsers; u++) {
+                double userBias = 3.5 + 0.5 * random.nextGaussian();
+                int count = Math.min(numMovies, ratingsPerUser / 2 + random.nextInt(ratingsPerUser + 1));
+                int found = 0;
+                while (found < count) {
+                    //Squaring a uniform number favours the low movie IDs, these are the popular movies
+                    double r = random.nextDouble();
+                    int movie = 1 + (int) (numMovies * r * r);
+                    if (!rated[movie]) {
+                        rated[movie] = true;
+                        movies[found++] = movie;
+                    }
+                }
+                for (int k = 0; k < count; k++) {
+                    int movie = movies[k];
+                    rated[movie] = false;
+                    double rating = Math.round(2 * (userBias + movieBias[movie] + 0.8 * random.nextGaussian())) / 2.0;
+                    rating = Math.max(0.5, Math.min(5, rating));
+                    bw.write(u + "::" + movie + "::" + rating + "::1234567890");
+                    bw.newLine();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't write " + temporary, e);
+        }
+        if (!temporary.renameTo(file) && !file.isFile()) {
+            throw new IllegalStateException("Couldn't rename " + temporary + " to " + file);
+        }
+        return file.getPath();
+    }
+
+    /**
+     * Reads the MovieHandler of a dataset, without its progress output.
+     */
+    static MovieHandler ratings(String dataset) {
+        String file = file(dataset);
+        PrintStream out = System.out;
+        System.setOut(SILENT);
+        try {
+            return new MovieHandler(file);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Random user/movie combinations of a dataset, sorted on the user like the lines of a test file.
+     *
+     * @return { user IDs, movie IDs }
+     */
+    static int[][] testPairs(String dataset, int count) {
+        int[] size = size(dataset);
+        Random random = new Random(SEED);
+        long[] pairs = new long[count];
+        for (int p = 0; p < count; p++) {
+            pairs[p] = ((long) (1 + random.nextInt(size[0])) << 32) | (1 + random.nextInt(size[1]));
+        }
+        Arrays.sort(pairs);
+        int[][] result = new int[2][count];
+        for (int p = 0; p < count; p++) {
+            result[0][p] = (int) (pairs[p] >>> 32);
+            result[1][p] = (int) pairs[p];
+        }
+        return result;
+    }
+
+    //Swallows the progress output of the recommender classes during the measurements
+    static final PrintStream SILENT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+}
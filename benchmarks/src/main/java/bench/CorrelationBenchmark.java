@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Pearson kernels PearsonsCorrelation.correlationFastLookUp and correlationWithPrecomputedMeansFastLookUp.
+ * One operation correlates one user with all users of the dataset, i.e. computes a full row of the matrix.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorrelationBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String dataset;
+
+    private Workload plain;
+    private Workload precomputedMeans;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plain = Workload.create("CorrelationWorkload", dataset, "false");
+        precomputedMeans = Workload.create("CorrelationWorkload", dataset, "true");
+    }
+
+    @Benchmark
+    public double correlationFastLookUp() {
+        return plain.run();
+    }
+
+    @Benchmark
+    public double correlationWithPrecomputedMeansFastLookUp() {
+        return precomputedMeans.run();
+    }
+
+}
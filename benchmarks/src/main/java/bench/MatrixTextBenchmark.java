@@ -0,0 +1,42 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and parsing one row of the text matrix, with as many values as the dataset has users.
+ * shortToChar: the row is added value by value to the text CorrelationMatrixWriter (whose add() is shortToChar)
+ * and written to /dev/null. parseOneCorrelationLine: the row is parsed into the best 50 neighbors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatrixTextBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String dataset;
+
+    private Workload write;
+    private Workload parse;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        write = Workload.create("ShortToCharWorkload", dataset);
+        parse = Workload.create("ParseLineWorkload", dataset, "50");
+    }
+
+    @Benchmark
+    public double shortToChar() {
+        return write.run();
+    }
+
+    @Benchmark
+    public double parseOneCorrelationLine() {
+        return parse.run();
+    }
+
+}
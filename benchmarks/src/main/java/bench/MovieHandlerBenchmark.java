@@ -0,0 +1,33 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MovieHandler.readData: one operation reads and indexes the whole rating file of the dataset.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MovieHandlerBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String dataset;
+
+    private Workload read;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        read = Workload.create("ReadDataWorkload", dataset);
+    }
+
+    @Benchmark
+    public double readData() {
+        return read.run();
+    }
+
+}
@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MovieRunner.predictRating with the 50 nearest neighbors. One operation is one prediction of a fixed list of
+ * random user/movie combinations, grouped by user like in a test file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PredictionBenchmark {
+
+    //Must match the number of predictions of one run() of the PredictWorkload
+    static final int PREDICTIONS = 1000;
+
+    @Param({"small", "medium", "large"})
+    public String dataset;
+
+    private Workload predict;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        predict = Workload.create("PredictWorkload", dataset, "50", Integer.toString(PREDICTIONS));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PREDICTIONS)
+    public double predictRating() {
+        return predict.run();
+    }
+
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerializableListManager add/get/delete the way the matrix computation uses it: one operation fills and empties
+ * the lower triangle of numLists lists. With a size as memoryBudget the lists spill to disk beyond it and are read
+ * back (with prefetching). With 0 the lists only grow into memory freed by deleteList and the rest spills, like
+ * -spillMemory 0. With memory every list is allocated at its full size, nothing spills.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializableListManagerBenchmark {
+
+    @Param({"1000", "4000"})
+    public String numLists;
+
+    @Param({"0", "1m", "memory"})
+    public String memoryBudget;
+
+    private Workload triangle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        triangle = Workload.create("ListManagerWorkload", numLists, memoryBudget);
+    }
+
+    @Benchmark
+    public double addGetSpill() {
+        return triangle.run();
+    }
+
+}
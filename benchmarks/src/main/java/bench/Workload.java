@@ -0,0 +1,35 @@
+package bench;
+
+/**
+ * One operation of a hot path of the recommender, prepared on a synthetic dataset.
+ * <p>
+ * JMH refuses benchmark classes in the default package, and classes of a named package can't refer to the
+ * classes of the default package the recommender lives in. So every hot path is driven by a workload class in
+ * the default package (next to the recommender classes it calls), and the benchmarks in this package only call
+ * run(). Every benchmark method uses a single workload class, so the call is monomorphic and inlined.
+ */
+public interface Workload {
+
+    /**
+     * Does one operation.
+     *
+     * @return a result of the operation, for the Blackhole
+     */
+    double run();
+
+    /**
+     * Creates a workload by the name of its class in the default package.
+     *
+     * @param className name of the workload class, it needs a constructor taking a String[]
+     * @param args      the arguments of the constructor, e.g. the name of the dataset
+     * @return the workload
+     */
+    static Workload create(String className, String... args) {
+        try {
+            return (Workload) Class.forName(className).getConstructor(String[].class).newInstance((Object) args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Couldn't create workload " + className, e);
+        }
+    }
+
+}
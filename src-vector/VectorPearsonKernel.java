@@ -0,0 +1,106 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD version of PearsonsCorrelation.correlationFastLookUp, using the incubating Java Vector API.
+ * <p>
+ * Per step a full vector of ratings of user Y is loaded, the ratings of user X are gathered from the look up array
+ * at the movie IDs of Y, and the lanes where X holds the flag (not a common movie) are masked out. Instead of the
+ * branch per rating, the five sums are accumulated in vector lanes.
+ * <p>
+ * The lanes are float and are moved to the double sums every BLOCK_SIZE ratings. Ratings are multiples of 0.5,
+ * so within a block every partial sum (of at most BLOCK_SIZE * 25) is exact in a float and the result is identical
+ * to the scalar kernel. For other ratings the difference is far below the 4 decimal digits the matrix stores.
+ * <p>
+ * Not part of the normal build: compile and run with --add-modules jdk.incubator.vector, see
+ * PearsonsCorrelation.useVectorKernel.
+ */
+public class VectorPearsonKernel implements PearsonKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    //Ratings accumulated in the float lanes before they are added to the double sums
+    private static final int BLOCK_SIZE = 1024;
+
+    @Override
+    public double correlation(int yStart, int yEnd,
+                              int[] movieIDs,
+                              float[] ratings,
+                              float[] lookUpArray,
+                              float lookUpArrayFlag,
+                              int minCommonRatedMovies) {
+        int commonRatedMovies = 0;
+        double sumOfXi = 0;
+        double sumOfYi = 0;
+        double sumOfXiSquared = 0;
+        double sumOfYiSquared = 0;
+        double sumOfXiYi = 0;
+
+        int lanes = SPECIES.length();
+        int vectorEnd = yStart + (yEnd - yStart) / lanes * lanes;
+        int k = yStart;
+        while (k < vectorEnd) {
+            int blockEnd = Math.min(vectorEnd, k + BLOCK_SIZE);
+
+            FloatVector sumX = FloatVector.zero(SPECIES);
+            FloatVector sumY = FloatVector.zero(SPECIES);
+            FloatVector sumXX = FloatVector.zero(SPECIES);
+            FloatVector sumYY = FloatVector.zero(SPECIES);
+            FloatVector sumXY = FloatVector.zero(SPECIES);
+            for (; k < blockEnd; k += lanes) {
+                FloatVector x = FloatVector.fromArray(SPECIES, lookUpArray, 0, movieIDs, k);
+                VectorMask<Float> common = x.compare(VectorOperators.NE, lookUpArrayFlag);
+                if (!common.anyTrue()) {
+                    continue;
+                }
+                x = FloatVector.zero(SPECIES).blend(x, common);
+                FloatVector y = FloatVector.zero(SPECIES).blend(FloatVector.fromArray(SPECIES, ratings, k), common);
+
+                sumX = sumX.add(x);
+                sumY = sumY.add(y);
+                sumXX = x.fma(x, sumXX);
+                sumYY = y.fma(y, sumYY);
+                sumXY = x.fma(y, sumXY);
+                commonRatedMovies += common.trueCount();
+            }
+
+            sumOfXi += sumX.reduceLanes(VectorOperators.ADD);
+            sumOfYi += sumY.reduceLanes(VectorOperators.ADD);
+            sumOfXiSquared += sumXX.reduceLanes(VectorOperators.ADD);
+            sumOfYiSquared += sumYY.reduceLanes(VectorOperators.ADD);
+            sumOfXiYi += sumXY.reduceLanes(VectorOperators.ADD);
+        }
+
+        //Tail, same as the scalar kernel
+        for (; k < yEnd; k++) {
+            double xRating = lookUpArray[movieIDs[k]];
+            if (xRating != lookUpArrayFlag) {
+                double yRating = ratings[k];
+
+                sumOfXi += xRating;
+                sumOfYi += yRating;
+
+                sumOfXiSquared += xRating * xRating;
+                sumOfYiSquared += yRating * yRating;
+
+                sumOfXiYi += xRating * yRating;
+
+                commonRatedMovies++;
+            }
+        }
+
+        // If the number of rated movies is less than the minimum required to define a common correlation
+        if (commonRatedMovies < minCommonRatedMovies) {
+            return Float.NaN;
+        }
+
+        double numerator = (commonRatedMovies * sumOfXiYi) - (sumOfXi * sumOfYi);
+        double denominator = Math.sqrt(commonRatedMovies * sumOfXiSquared - (sumOfXi * sumOfXi)) *
+                Math.sqrt(commonRatedMovies * sumOfYiSquared - (sumOfYi * sumOfYi));
+
+        return numerator / denominator;
+    }
+
+}
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a correlation matrix row by row. The compute methods of PearsonsCorrelation hand every value of a row
+ * to add() and call endRow() once the row is complete. Values are encoded the way the compute methods store them:
+ * the correlation rounded to 4 decimal digits and multiplied by 10000, Short.MAX_VALUE represents NaN.
+ * <p>
+ * Three formats exist:
+ *   - text:
+ *       first line the number of users, second line the parameters the matrix was computed with, followed by
+ *       one line per user with comma separated values (.1234, -.1234, 1.0000, -1.0000 or NaN)
+ *   - binary:
+ *       a 16 byte header (see BINARY_MAGIC) followed by numUsers * numUsers big endian shorts in row major order.
+ *       This is 2 bytes per cell instead of ~6 characters and can be memory mapped by the reader.
+ *   - top-K:
+ *       only the K neighbors with the highest absolute correlation of every user are kept. A 20 byte header
+ *       (see TOPK_MAGIC) is followed for every user by the number of neighbors as a short and that many
+ *       (int id, short correlation) pairs, best neighbor first. Since the values of a row are handed to add()
+ *       both from the replayed lower triangle and the freshly computed upper triangle, every row sees all values.
+ */
+abstract class CorrelationMatrixWriter {
+
+    //"PCMB", first 4 bytes of a binary matrix file, a text matrix file starts with a digit so they cannot be confused
+    static final int BINARY_MAGIC = 0x50434D42;
+    static final short BINARY_VERSION = 1;
+    //magic (4) + version (2) + precomputedMeans (1) + reserved (1) + numUsers (4) + minCommonRatedMovies (4)
+    static final int BINARY_HEADER_SIZE = 16;
+
+    //"PCMK", first 4 bytes of a top-K neighbor file
+    static final int TOPK_MAGIC = 0x50434D4B;
+    static final short TOPK_VERSION = 1;
+    //magic (4) + version (2) + precomputedMeans (1) + reserved (1) + numUsers (4) + minCommonRatedMovies (4) + K (4)
+    static final int TOPK_HEADER_SIZE = 20;
+
+    /**
+     * Opens a writer and writes the header.
+     *
+     * @param outputFile           file the matrix is written to
+     * @param numUsers             number of rows (and columns) of the matrix
+     * @param precomputedMeans     whether the matrix was computed with precomputed means
+     * @param minCommonRatedMovies the least num of commonly rated movies the matrix was computed with
+     * @param binary               write the binary instead of the text format
+     * @param topK                 if larger than 0 only write the topK best neighbors of every user
+     * @return the writer
+     * @throws IOException if the file cannot be opened
+     */
+    static CorrelationMatrixWriter open(String outputFile, int numUsers, boolean precomputedMeans,
+                                        int minCommonRatedMovies, boolean binary, int topK) throws IOException {
+        if (topK > 0) {
+            return new TopK(outputFile, numUsers, precomputedMeans, minCommonRatedMovies, topK);
+        }
+        if (binary) {
+            return new Binary(outputFile, numUsers, precomputedMeans, minCommonRatedMovies);
+        }
+        return new Text(outputFile, numUsers, precomputedMeans, minCommonRatedMovies);
+    }
+
+    /**
+     * Opens a top-K writer, which can also be given rows that are only known in part, see TopK.add(int, short).
+     *
+     * @param outputFile           file the neighbors are written to
+     * @param numUsers             number of rows of the matrix
+     * @param precomputedMeans     whether the matrix was computed with precomputed means
+     * @param minCommonRatedMovies the least num of commonly rated movies the matrix was computed with
+     * @param topK                 number of neighbors kept per user
+     * @return the writer
+     * @throws IOException if the file cannot be opened
+     */
+    static TopK openTopK(String outputFile, int numUsers, boolean precomputedMeans, int minCommonRatedMovies,
+                         int topK) throws IOException {
+        return new TopK(outputFile, numUsers, precomputedMeans, minCommonRatedMovies, topK);
+    }
+
+    /**
+     * Appends one value to the current row.
+     *
+     * @param val the encoded correlation
+     */
+    abstract void add(short val);
+
+    /**
+     * Writes the current row to disk and starts a new one.
+     */
+    abstract void endRow() throws IOException;
+
+    abstract void close() throws IOException;
+
+
+    private static class Text extends CorrelationMatrixWriter {
+
+        //I keep the buffered writer open during the whole duration of the program as I need to write to disk often
+        private final BufferedWriter bw;
+
+        //Used in combination with method shortToChar, just used to make the printing to disk a bit faster
+        //"-1.0000," is the longest value
+        private final char[] printChars;
+        private int printCharsCounter = 0;
+
+        Text(String outputFile, int numUsers, boolean precomputedMeans, int minCommonRatedMovies)
+                throws IOException {
+            this.printChars = new char[8 * numUsers];
+            this.bw = new BufferedWriter(new FileWriter(outputFile));
+            bw.write("" + numUsers);
+            bw.newLine();
+            bw.write("precomputedMeans=" + precomputedMeans + ",minCommonRatedMovies=" + minCommonRatedMovies);
+            bw.newLine();
+        }
+
+        @Override
+        void add(short val) {
+            shortToChar(val);
+        }
+
+        @Override
+        void endRow() throws IOException {
+            printChars[printCharsCounter - 1] = '\n'; //note -1 here to delete last comma and put a break line instead!
+            bw.write(printChars, 0, printCharsCounter);
+            printCharsCounter = 0;
+        }
+
+        @Override
+        void close() throws IOException {
+            bw.close();
+        }
+
+        //Prepares text for printing it to disk
+        //Makes use of a few global variables to make it fast
+        private void shortToChar(short val) {
+
+            if (val == Short.MAX_VALUE) {
+                printChars[printCharsCounter++] = 'N';
+                printChars[printCharsCounter++] = 'a';
+                printChars[printCharsCounter++] = 'N';
+                printChars[printCharsCounter++] = ',';
+                return;
+            }
+
+            if (val < 0) {
+                val = (short) -val;
+                printChars[printCharsCounter++] = '-';
+            }
+
+            if (val == 10000) {
+                printChars[printCharsCounter++] = '1';
+                printChars[printCharsCounter++] = '.';
+                printChars[printCharsCounter++] = '0';
+                printChars[printCharsCounter++] = '0';
+                printChars[printCharsCounter++] = '0';
+                printChars[printCharsCounter++] = '0';
+                printChars[printCharsCounter++] = ',';
+            } else {
+                printChars[printCharsCounter++] = '.';
+                printChars[printCharsCounter + 3] = (char) ('0' + (val % 10));
+                val /= 10;
+                printChars[printCharsCounter + 2] = (char) ('0' + (val % 10));
+                val /= 10;
+                printChars[printCharsCounter + 1] = (char) ('0' + (val % 10));
+                val /= 10;
+                printChars[printCharsCounter] = (char) ('0' + (val % 10));
+                printChars[printCharsCounter + 4] = ',';
+                printCharsCounter += 5;
+            }
+        }
+    }
+
+
+    private static class Binary extends CorrelationMatrixWriter {
+
+        private final FileOutputStream out;
+        private final FileChannel fc;
+
+        //One full row, written to the channel in one go
+        private final ByteBuffer rowBuffer;
+
+        Binary(String outputFile, int numUsers, boolean precomputedMeans, int minCommonRatedMovies)
+                throws IOException {
+            this.out = new FileOutputStream(outputFile);
+            this.fc = out.getChannel();
+            this.rowBuffer = ByteBuffer.allocateDirect(Math.max(2 * numUsers, BINARY_HEADER_SIZE));
+
+            rowBuffer.putInt(BINARY_MAGIC);
+            rowBuffer.putShort(BINARY_VERSION);
+            rowBuffer.put((byte) (precomputedMeans ? 1 : 0));
+            rowBuffer.put((byte) 0);
+            rowBuffer.putInt(numUsers);
+            rowBuffer.putInt(minCommonRatedMovies);
+            flush();
+        }
+
+        @Override
+        void add(short val) {
+            rowBuffer.putShort(val);
+        }
+
+        @Override
+        void endRow() throws IOException {
+            flush();
+        }
+
+        @Override
+        void close() throws IOException {
+            fc.close();
+            out.close();
+        }
+
+        private void flush() throws IOException {
+            rowBuffer.flip();
+            while (rowBuffer.hasRemaining()) {
+                fc.write(rowBuffer);
+            }
+            rowBuffer.clear();
+        }
+    }
+
+
+    static class TopK extends CorrelationMatrixWriter {
+
+        private final DataOutputStream out;
+        private final NeighborHeap heap;
+
+        //Column of the next value handed to add()
+        private int column = 0;
+
+        private final int[] rowIds;
+        private final short[] rowValues;
+
+        TopK(String outputFile, int numUsers, boolean precomputedMeans, int minCommonRatedMovies, int topK)
+                throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16));
+            this.heap = new NeighborHeap(topK);
+            this.rowIds = new int[topK];
+            this.rowValues = new short[topK];
+
+            out.writeInt(TOPK_MAGIC);
+            out.writeShort(TOPK_VERSION);
+            out.writeByte(precomputedMeans ? 1 : 0);
+            out.writeByte(0);
+            out.writeInt(numUsers);
+            out.writeInt(minCommonRatedMovies);
+            out.writeInt(topK);
+        }
+
+        @Override
+        void add(short val) {
+            if (val != Short.MAX_VALUE) {
+                heap.offer(column, val);
+            }
+            column++;
+        }
+
+        /**
+         * Adds the value of one column to the current row, for rows that are only known in part. Columns that are
+         * not given are NaN. Do not mix with add(short) in the same row.
+         *
+         * @param column the column, any order
+         * @param val    the encoded correlation
+         */
+        void add(int column, short val) {
+            //The heap orders on (correlation, column), so the order the columns are given in does not matter
+            if (val != Short.MAX_VALUE) {
+                heap.offer(column, val);
+            }
+        }
+
+        @Override
+        void endRow() throws IOException {
+            int count = heap.drainSorted(rowIds, rowValues);
+            out.writeShort(count);
+            for (int k = 0; k < count; k++) {
+                out.writeInt(rowIds[k]);
+                out.writeShort(rowValues[k]);
+            }
+            column = 0;
+        }
+
+        @Override
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Candidate neighbors of every user from MinHash signatures of the sets of rated movies, with LSH banding.
+ * <p>
+ * Every user gets a signature of bands * rows MinHash values, the minimum of a random hash function over the
+ * movies the user rated. Two users with Jaccard similarity s of their movie sets agree on a value with probability
+ * s. The signature is cut in bands of rows values, users that agree on all values of at least one band are
+ * candidates of each other, which happens with probability 1 - (1 - s^rows)^bands. More bands give a higher recall,
+ * more rows fewer (and better) candidates.
+ * <p>
+ * Only the candidates are then correlated exactly, see PearsonsCorrelation.computeApproximateNeighbors.
+ * The signatures are computed in parallel, candidates() can be called from several threads.
+ */
+class MinHashLSH {
+
+    //Users per task of the signature computation
+    private static final int SIGNATURE_CHUNK_SIZE = 1024;
+
+    private final int numUsers;
+    private final int bands;
+
+    //For every band the users sorted on their band hash, and for every user its position in that order
+    private final int[][] usersByBand;
+    private final int[][] positionInBand;
+    //The users of the bucket of position p of band b are at the positions bucketStart[b][p] ... bucketEnd[b][p]-1
+    private final int[][] bucketStart;
+    private final int[][] bucketEnd;
+
+    /**
+     * Computes the signatures and buckets.
+     *
+     * @param ratings    the ratings
+     * @param bands      number of bands
+     * @param rows       number of MinHash values per band
+     * @param seed       seed of the hash functions
+     * @param numThreads number of threads the signatures are computed with
+     * @throws InterruptedException if interrupted while waiting for the signatures
+     * @throws ExecutionException   if computing the signatures failed
+     */
+    MinHashLSH(MovieHandler ratings, int bands, final int rows, long seed, int numThreads)
+            throws InterruptedException, ExecutionException {
+        this.numUsers = ratings.getNumUsers();
+        this.bands = bands;
+
+        //h(movie) = mix(movie * a + c), one (a, c) per signature value
+        Random random = new Random(seed);
+        final long[] a = new long[bands * rows];
+        final long[] c = new long[bands * rows];
+        for (int h = 0; h < a.length; h++) {
+            a[h] = random.nextLong() | 1;
+            c[h] = random.nextLong();
+        }
+
+        //The band hashes of every user, bandHashes[b][user], computed for ranges of users in parallel
+        final long[][] bandHashes = new long[bands][numUsers];
+        final MovieHandler sharedRatings = ratings;
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> parts = new ArrayList<Future<?>>();
+        for (int from = 0; from < numUsers; from += SIGNATURE_CHUNK_SIZE) {
+            final int partFrom = from;
+            final int partTo = Math.min(numUsers, from + SIGNATURE_CHUNK_SIZE);
+            parts.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    computeBandHashes(partFrom, partTo, sharedRatings, a, c, rows, bandHashes);
+                }
+            }));
+        }
+        try {
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        this.usersByBand = new int[bands][];
+        this.positionInBand = new int[bands][numUsers];
+        this.bucketStart = new int[bands][numUsers];
+        this.bucketEnd = new int[bands][numUsers];
+        long[] keys = new long[numUsers];
+        long[] distinctHashes = new long[numUsers];
+        int[] bucketOf = new int[numUsers];
+        int[] bucketPosition = new int[numUsers + 1];
+        for (int b = 0; b < bands; b++) {
+            //Sort the users on (band hash, user), a bucket are the users with the same band hash. The distinct
+            //hashes are sorted as primitives, then the users are placed per hash in increasing user order.
+            long[] hashes = bandHashes[b];
+            System.arraycopy(hashes, 0, distinctHashes, 0, numUsers);
+            Arrays.sort(distinctHashes);
+            int numBuckets = 0;
+            for (int p = 0; p < numUsers; p++) {
+                if (numBuckets == 0 || distinctHashes[p] != distinctHashes[numBuckets - 1]) {
+                    distinctHashes[numBuckets++] = distinctHashes[p];
+                }
+            }
+
+            Arrays.fill(bucketPosition, 0, numBuckets + 1, 0);
+            for (int user = 0; user < numUsers; user++) {
+                bucketOf[user] = Arrays.binarySearch(distinctHashes, 0, numBuckets, hashes[user]);
+                bucketPosition[bucketOf[user] + 1]++;
+            }
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                bucketPosition[bucket + 1] += bucketPosition[bucket];
+            }
+
+            int[] users = new int[numUsers];
+            for (int user = 0; user < numUsers; user++) {
+                int p = bucketPosition[bucketOf[user]]++;
+                users[p] = user;
+                keys[p] = hashes[user];
+                positionInBand[b][user] = p;
+            }
+            usersByBand[b] = users;
+
+            int start = 0;
+            for (int p = 1; p <= numUsers; p++) {
+                if (p == numUsers || keys[p] != keys[start]) {
+                    for (int q = start; q < p; q++) {
+                        bucketStart[b][q] = start;
+                        bucketEnd[b][q] = p;
+                    }
+                    start = p;
+                }
+            }
+        }
+    }
+
+    //Computes the signatures and band hashes of the users from ... to-1
+    private static void computeBandHashes(int from, int to, MovieHandler ratings, long[] a, long[] c, int rows,
+                                          long[][] bandHashes) {
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        int signatureLength = a.length;
+        long[] signature = new long[signatureLength];
+        for (int user = from; user < to; user++) {
+            Arrays.fill(signature, Long.MAX_VALUE);
+            for (int k = ratingOffsets[user]; k < ratingOffsets[user + 1]; k++) {
+                long movie = ratingMovieIDs[k];
+                for (int h = 0; h < signatureLength; h++) {
+                    long value = mix(movie * a[h] + c[h]);
+                    if (value < signature[h]) {
+                        signature[h] = value;
+                    }
+                }
+            }
+            for (int b = 0; b < bandHashes.length; b++) {
+                long bandHash = b;
+                for (int r = 0; r < rows; r++) {
+                    bandHash = mix(bandHash * 31 + signature[b * rows + r]);
+                }
+                bandHashes[b][user] = bandHash;
+            }
+        }
+    }
+
+    /**
+     * Scratch space of candidates(), every thread needs its own.
+     */
+    static class Scratch {
+        //seen[j] == user if j is already a candidate of user
+        final int[] seen;
+        int[] candidates = new int[16];
+        int numCandidates = 0;
+
+        Scratch(int numUsers) {
+            seen = new int[numUsers];
+            Arrays.fill(seen, -1);
+        }
+    }
+
+    /**
+     * Collects the candidates of a user, i.e. the users sharing a bucket with it in at least one band.
+     *
+     * @param user    internal user ID
+     * @param scratch receives the candidates in scratch.candidates[0 ... scratch.numCandidates-1]
+     */
+    void candidates(int user, Scratch scratch) {
+        int numCandidates = 0;
+        int[] seen = scratch.seen;
+        seen[user] = user;
+        for (int b = 0; b < bands; b++) {
+            int p = positionInBand[b][user];
+            for (int q = bucketStart[b][p]; q < bucketEnd[b][p]; q++) {
+                int j = usersByBand[b][q];
+                if (seen[j] != user) {
+                    seen[j] = user;
+                    if (numCandidates == scratch.candidates.length) {
+                        scratch.candidates = Arrays.copyOf(scratch.candidates, 2 * numCandidates);
+                    }
+                    scratch.candidates[numCandidates++] = j;
+                }
+            }
+        }
+        scratch.numCandidates = numCandidates;
+    }
+
+    int getNumUsers() {
+        return numUsers;
+    }
+
+    //64 bit finalizer of MurmurHash3, spreads the bits of the linear hash
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe44a53b5L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -1,13 +1,20 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 /**
  * The MovieHandler reads the MovieLens data and constructs several mappings:
@@ -17,6 +24,16 @@ import java.util.Set;
  *       maps the internal movie ID to the true movie ID
  *   - usersToRatings: 
  *       maps the true user ID to a list of movie ratings
+ *   - ratingOffsets, ratingMovieIDs, ratingValues:
+ *       the same ratings in a compressed sparse row layout indexed by internal user ID. The ratings of
+ *       internal user u are at the positions ratingOffsets[u] ... ratingOffsets[u+1]-1 of ratingMovieIDs
+ *       (true movie IDs) and ratingValues, in the order they appear in the rating file. This layout needs
+ *       8 bytes per rating instead of a MovieRating object, and can be iterated without allocation.
+ *       usersToRatings is only built from it when getUsersToRatings() is called.
+ *   - movieRaterOffsets, movieRaterUserIDs, movieRaterValues:
+ *       the inverted index of the above, indexed by internal movie ID. The users that rated internal movie m
+ *       are at the positions movieRaterOffsets[m] ... movieRaterOffsets[m+1]-1 of movieRaterUserIDs (internal
+ *       user IDs, sorted) and movieRaterValues.
  *
  * Constructing these mappings once avoids an indexOf lookup for every
  * movie/user.
@@ -33,12 +50,28 @@ public class MovieHandler {
 
     private String ratingFile;
 
-    private Map<Integer, List<MovieRating>> usersToRatings = new HashMap<Integer, List<MovieRating>>(); 
+    private Map<Integer, List<MovieRating>> usersToRatings;
+
+    private int[] ratingOffsets;
+    private int[] ratingMovieIDs;
+    //MovieLens ratings are multiples of 0.5, so a float holds them exactly
+    private float[] ratingValues;
+
+    //true user ID to internal user ID, -1 for unknown users
+    private int[] externalToInternalUserIDs;
+
+    private int[] movieRaterOffsets;
+    private int[] movieRaterUserIDs;
+    private float[] movieRaterValues;
+
+    //true movie ID to internal movie ID, -1 for unknown movies
+    private int[] externalToInternalMovieIDs;
 
     private ArrayList<Integer> movieIDs;
     private ArrayList<Integer> userIDs;
 
-    private Map<Integer, Double> movieAverageRatings;
+    //average rating by internal movie ID
+    private double[] movieAverageRatings;
 
     static double DEFAULT_RATING = 2.5;
 
@@ -51,15 +84,76 @@ public class MovieHandler {
      * @param fileName name of file containing the ratings
      */
     public MovieHandler(String fileName) {
+        this(fileName, false);
+    }
+
+    /**
+     * Create a new MovieHandler, optionally using a binary snapshot of the parsed data.
+     *
+     * With useSnapshot the structures are loaded from fileName + SNAPSHOT_SUFFIX if that snapshot was made from
+     * a rating file of the same size and modification time. Otherwise the rating file is read and a new snapshot
+     * is written for the next run.
+     *
+     * @param fileName name of file containing the ratings
+     * @param useSnapshot whether to load and save a snapshot
+     */
+    public MovieHandler(String fileName, boolean useSnapshot) {
         this.ratingFile = fileName;
 
         long startTime = System.currentTimeMillis();
+        if (useSnapshot && this.loadSnapshot()) {
+            System.out.println("Loaded snapshot " + fileName + SNAPSHOT_SUFFIX + ", took "
+                    + (System.currentTimeMillis() - startTime)/1000.0 + "seconds.");
+            System.out.println("--------------");
+            return;
+        }
+
         System.out.println("Reading data.. ");
         this.readData();
         System.out.println("done, took " +  (System.currentTimeMillis() - startTime)/1000.0 + "seconds.");
+        if (useSnapshot) {
+            this.saveSnapshot();
+        }
         System.out.println("--------------");
     }
 
+    //Only used by transpose()
+    private MovieHandler() {
+    }
+
+    /**
+     * Returns the same ratings with the roles of users and movies swapped, for item based collaborative filtering.
+     *
+     * The users of the transposed handler are the movies of this one and the other way around: internal user m of
+     * the transposed handler is internal movie m of this handler, and its "ratings" are the ratings the movie got,
+     * with the true user IDs as "movie IDs". So everything written for the ratings of users (the correlation
+     * kernels, the inverted index, ...) works on the ratings of movies without changes.
+     *
+     * The transposed handler has its own compressed sparse row layout and inverted index, it costs about as much
+     * memory as this handler.
+     *
+     * @return the transposed handler
+     */
+    MovieHandler transpose() {
+        MovieHandler transposed = new MovieHandler();
+        transposed.ratingFile = ratingFile;
+        transposed.userIDs = movieIDs;
+        transposed.movieIDs = userIDs;
+        transposed.externalToInternalUserIDs = externalToInternalMovieIDs;
+
+        //The rows of the transposed handler are the rows of the inverted index, with true IDs instead of internal
+        transposed.ratingOffsets = movieRaterOffsets;
+        transposed.ratingValues = movieRaterValues;
+        transposed.ratingMovieIDs = new int[movieRaterUserIDs.length];
+        for (int k = 0; k < movieRaterUserIDs.length; k++) {
+            transposed.ratingMovieIDs[k] = userIDs.get(movieRaterUserIDs[k]);
+        }
+
+        transposed.buildMovieRaters();
+        transposed.computeMovieAverageRatings();
+        return transposed;
+    }
+
     /**
      * Returns internal ID to true ID mapping.
      *
@@ -69,58 +163,237 @@ public class MovieHandler {
         return userIDs;
     }
 
+    //Size of the parts of the rating file that are parsed in parallel
+    private static final long READ_CHUNK_SIZE = 32L << 20;
+
+    /**
+     * Ratings of one part of the rating file, in file order.
+     */
+    private static class RatingChunk {
+        int size = 0;
+        int[] userIDs = new int[1 << 16];
+        int[] movieIDs = new int[1 << 16];
+        float[] ratings = new float[1 << 16];
+
+        void add(int userID, int movieID, float rating) {
+            if (size == userIDs.length) {
+                userIDs = Arrays.copyOf(userIDs, 2 * size);
+                movieIDs = Arrays.copyOf(movieIDs, 2 * size);
+                ratings = Arrays.copyOf(ratings, 2 * size);
+            }
+            userIDs[size] = userID;
+            movieIDs[size] = movieID;
+            ratings[size] = rating;
+            size++;
+        }
+    }
+
     /**
-     * Reads the MovieLens data into a map, mapping user IDs to lists of movie
-     * ratings and creates internal to true ID mappings for users and movies.
+     * Reads the MovieLens data into the compressed sparse row layout and creates internal to true ID mappings for
+     * users and movies.
+     * <p>
+     * The rating file is split in parts ending on a newline, which are memory mapped and parsed in parallel with
+     * a RatingLineParser, so no Strings are created and nothing is boxed per line. The parts are merged in file
+     * order, which gives the same layout as reading the file line by line.
      */
     private void readData() {
-        Set<Integer> movieSet = new HashSet<Integer>();
-
-        BufferedReader br;
-        try {
-            br = new BufferedReader(new FileReader(ratingFile));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] tokens = line.split("::|\t");
-
-                int userID = Integer.parseInt(tokens[0]);
-                int movieID = Integer.parseInt(tokens[1]);
-                double rating = Double.parseDouble(tokens[2]);
-
-                movieSet.add(movieID);
-                if (!usersToRatings.containsKey(userID)) {
-                    List<MovieRating> ratingList = new ArrayList<MovieRating>();
-                    ratingList.add(new MovieRating(movieID, rating));
-                    usersToRatings.put(userID, ratingList);
-                } else {
-                    usersToRatings.get(userID).add(new MovieRating(movieID, rating));
+        List<RatingChunk> chunks = new ArrayList<RatingChunk>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(ratingFile, "r")) {
+            final FileChannel fc = raf.getChannel();
+            long fileSize = fc.size();
+
+            //Part boundaries, every part but the last ends right after a newline
+            List<Long> boundaries = new ArrayList<Long>();
+            boundaries.add(0L);
+            ByteBuffer oneByte = ByteBuffer.allocate(1);
+            long boundary = READ_CHUNK_SIZE;
+            while (boundary < fileSize) {
+                while (boundary < fileSize) {
+                    oneByte.clear();
+                    fc.read(oneByte, boundary - 1);
+                    if (oneByte.get(0) == '\n') {
+                        break;
+                    }
+                    boundary++;
                 }
+                boundaries.add(boundary);
+                boundary += READ_CHUNK_SIZE;
+            }
+            if (boundaries.get(boundaries.size() - 1) < fileSize) {
+                boundaries.add(fileSize);
+            }
+
+            int numThreads = Math.max(1, Math.min(boundaries.size() - 1, Runtime.getRuntime().availableProcessors()));
+            ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+            List<Future<RatingChunk>> parsed = new ArrayList<Future<RatingChunk>>();
+            for (int c = 0; c + 1 < boundaries.size(); c++) {
+                final long start = boundaries.get(c);
+                final long end = boundaries.get(c + 1);
+                parsed.add(pool.submit(new Callable<RatingChunk>() {
+                    @Override
+                    public RatingChunk call() throws IOException {
+                        MappedByteBuffer bytes = fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                        RatingLineParser parser = new RatingLineParser(bytes, 0, (int) (end - start), start);
+                        RatingChunk chunk = new RatingChunk();
+                        while (parser.next()) {
+                            chunk.add(parser.userID, parser.movieID, (float) parser.rating);
+                        }
+                        return chunk;
+                    }
+                }));
+            }
+            try {
+                for (Future<RatingChunk> future : parsed) {
+                    chunks.add(future.get());
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } catch (ExecutionException e) {
+            //A malformed line, fail like Integer.parseInt did when the file was read line by line
+            if (e.getCause() instanceof NumberFormatException) {
+                throw (NumberFormatException) e.getCause();
             }
-            br.close();
-        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
 
         // store the user ids as a sorted list (just to make sure that we have a unique ordering)
-        userIDs = new ArrayList<Integer>(usersToRatings.keySet());
-        Collections.sort(userIDs);
+        userIDs = sortedDistinct(chunks, true);
 
         // same for movie ids
-        movieIDs = new ArrayList<Integer>(movieSet);
-        Collections.sort(movieIDs);
+        movieIDs = sortedDistinct(chunks, false);
+
+        buildRatingRows(chunks);
+        buildMovieRaters();
 
         // precompute average ratings for each movie
         computeMovieAverageRatings();
 
     }
 
+    /**
+     * Returns the distinct user or movie IDs of the chunks in increasing order, found with a presence array
+     * instead of a set of boxed IDs.
+     */
+    private static ArrayList<Integer> sortedDistinct(List<RatingChunk> chunks, boolean users) {
+        int maxID = -1;
+        for (RatingChunk chunk : chunks) {
+            int[] ids = users ? chunk.userIDs : chunk.movieIDs;
+            for (int k = 0; k < chunk.size; k++) {
+                maxID = Math.max(maxID, ids[k]);
+            }
+        }
+
+        boolean[] present = new boolean[maxID + 1];
+        int numDistinct = 0;
+        for (RatingChunk chunk : chunks) {
+            int[] ids = users ? chunk.userIDs : chunk.movieIDs;
+            for (int k = 0; k < chunk.size; k++) {
+                if (!present[ids[k]]) {
+                    present[ids[k]] = true;
+                    numDistinct++;
+                }
+            }
+        }
+
+        ArrayList<Integer> distinct = new ArrayList<Integer>(numDistinct);
+        for (int id = 0; id <= maxID; id++) {
+            if (present[id]) {
+                distinct.add(id);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Builds the compressed sparse row layout from the ratings in file order with a counting sort on the
+     * internal user ID. The sort is stable, so every user keeps the file order of its ratings.
+     * Requires userIDs to be set.
+     */
+    private void buildRatingRows(List<RatingChunk> chunks) {
+        int numUsers = userIDs.size();
+        externalToInternalUserIDs = invertIDs(userIDs);
+
+        //Count the ratings of every user, offsets are the prefix sums
+        int numRatings = 0;
+        ratingOffsets = new int[numUsers + 1];
+        for (RatingChunk chunk : chunks) {
+            for (int k = 0; k < chunk.size; k++) {
+                ratingOffsets[externalToInternalUserIDs[chunk.userIDs[k]] + 1]++;
+            }
+            numRatings += chunk.size;
+        }
+        for (int u = 0; u < numUsers; u++) {
+            ratingOffsets[u + 1] += ratingOffsets[u];
+        }
+
+        ratingMovieIDs = new int[numRatings];
+        ratingValues = new float[numRatings];
+        int[] cursor = Arrays.copyOf(ratingOffsets, numUsers);
+        for (RatingChunk chunk : chunks) {
+            for (int k = 0; k < chunk.size; k++) {
+                int position = cursor[externalToInternalUserIDs[chunk.userIDs[k]]]++;
+                ratingMovieIDs[position] = chunk.movieIDs[k];
+                ratingValues[position] = chunk.ratings[k];
+            }
+        }
+    }
+
+    /**
+     * Inverts a sorted internal to true ID mapping.
+     *
+     * @return array mapping the true ID to the internal ID, -1 for IDs that do not occur
+     */
+    private static int[] invertIDs(ArrayList<Integer> ids) {
+        int maxID = ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+        int[] inverted = new int[maxID + 1];
+        Arrays.fill(inverted, -1);
+        for (int internal = 0; internal < ids.size(); internal++) {
+            inverted[ids.get(internal)] = internal;
+        }
+        return inverted;
+    }
+
+    /**
+     * Builds the movie to raters inverted index from the compressed sparse row layout, again with a counting sort.
+     * Users are visited in internal ID order, so the raters of every movie end up sorted.
+     * Requires movieIDs and the compressed sparse row layout to be set.
+     */
+    private void buildMovieRaters() {
+        int numMovies = movieIDs.size();
+        externalToInternalMovieIDs = invertIDs(movieIDs);
+
+        movieRaterOffsets = new int[numMovies + 1];
+        for (int k = 0; k < ratingMovieIDs.length; k++) {
+            movieRaterOffsets[externalToInternalMovieIDs[ratingMovieIDs[k]] + 1]++;
+        }
+        for (int m = 0; m < numMovies; m++) {
+            movieRaterOffsets[m + 1] += movieRaterOffsets[m];
+        }
+
+        movieRaterUserIDs = new int[ratingMovieIDs.length];
+        movieRaterValues = new float[ratingMovieIDs.length];
+        int[] cursor = Arrays.copyOf(movieRaterOffsets, numMovies);
+        for (int u = 0; u < userIDs.size(); u++) {
+            for (int k = ratingOffsets[u]; k < ratingOffsets[u + 1]; k++) {
+                int position = cursor[externalToInternalMovieIDs[ratingMovieIDs[k]]]++;
+                movieRaterUserIDs[position] = u;
+                movieRaterValues[position] = ratingValues[k];
+            }
+        }
+    }
+
     /** 
      * Fetch the average movie rating from the cache.
      *  b @see computeMovieAverageRatings()
      */ 
     public double getMovieAverageRating(Integer movieID) {
-        if (movieAverageRatings.containsKey(movieID)) {
-            return movieAverageRatings.get(movieID);
+        int internalMovieID = getInternalMovieID(movieID);
+        if (internalMovieID >= 0) {
+            return movieAverageRatings[internalMovieID];
         }
         return DEFAULT_RATING;
     }
@@ -129,9 +402,100 @@ public class MovieHandler {
      * Returns the user to movie mapping. External IDs are used here.
      * @return the mappings
      */
-    public Map<Integer, List<MovieRating>> getUsersToRatings() {
+    public synchronized Map<Integer, List<MovieRating>> getUsersToRatings() {
+        //Compatibility view, only built when asked for
+        if (usersToRatings == null) {
+            usersToRatings = new HashMap<Integer, List<MovieRating>>();
+            for (int u = 0; u < userIDs.size(); u++) {
+                List<MovieRating> ratingList = new ArrayList<MovieRating>(ratingOffsets[u + 1] - ratingOffsets[u]);
+                for (int k = ratingOffsets[u]; k < ratingOffsets[u + 1]; k++) {
+                    ratingList.add(new MovieRating(ratingMovieIDs[k], ratingValues[k]));
+                }
+                usersToRatings.put(userIDs.get(u), ratingList);
+            }
+        }
         return usersToRatings;
     }
+
+    /**
+     * Returns the offsets of the compressed sparse row layout: the ratings of internal user u are at the
+     * positions getRatingOffsets()[u] ... getRatingOffsets()[u+1]-1 of getRatingMovieIDs() and getRatingValues().
+     * The returned array must not be modified.
+     * @return the offsets, numUsers+1 long
+     */
+    public int[] getRatingOffsets() {
+        return ratingOffsets;
+    }
+
+    /**
+     * Returns the true movie IDs of the compressed sparse row layout, see getRatingOffsets().
+     * The returned array must not be modified.
+     * @return the movie IDs
+     */
+    public int[] getRatingMovieIDs() {
+        return ratingMovieIDs;
+    }
+
+    /**
+     * Returns the ratings of the compressed sparse row layout, see getRatingOffsets().
+     * The returned array must not be modified.
+     * @return the ratings
+     */
+    public float[] getRatingValues() {
+        return ratingValues;
+    }
+
+    /**
+     * Returns the offsets of the movie to raters inverted index: the raters of internal movie m are at the
+     * positions getMovieRaterOffsets()[m] ... getMovieRaterOffsets()[m+1]-1 of getMovieRaterUserIDs() and
+     * getMovieRaterValues(). The returned array must not be modified.
+     * @return the offsets, numMovies+1 long
+     */
+    public int[] getMovieRaterOffsets() {
+        return movieRaterOffsets;
+    }
+
+    /**
+     * Returns the internal user IDs of the movie to raters inverted index, sorted per movie, see
+     * getMovieRaterOffsets(). The returned array must not be modified.
+     * @return the internal user IDs
+     */
+    public int[] getMovieRaterUserIDs() {
+        return movieRaterUserIDs;
+    }
+
+    /**
+     * Returns the ratings of the movie to raters inverted index, see getMovieRaterOffsets().
+     * The returned array must not be modified.
+     * @return the ratings
+     */
+    public float[] getMovieRaterValues() {
+        return movieRaterValues;
+    }
+
+    /**
+     * Returns the internal ID of a movie.
+     * @param externalMovieID the true movie ID
+     * @return the internal movie ID, or -1 if the movie has no ratings
+     */
+    public int getInternalMovieID(int externalMovieID) {
+        if (externalMovieID < 0 || externalMovieID >= externalToInternalMovieIDs.length) {
+            return -1;
+        }
+        return externalToInternalMovieIDs[externalMovieID];
+    }
+
+    /**
+     * Returns the internal ID of a user.
+     * @param externalUserID the true user ID
+     * @return the internal user ID, or -1 if the user has no ratings
+     */
+    public int getInternalUserID(int externalUserID) {
+        if (externalUserID < 0 || externalUserID >= externalToInternalUserIDs.length) {
+            return -1;
+        }
+        return externalToInternalUserIDs[externalUserID];
+    }
     
     /**
      * Returns the number of users that were read.
@@ -153,28 +517,223 @@ public class MovieHandler {
      * Computes and caches movies average ratings. 
      */
     private void computeMovieAverageRatings() {
-        movieAverageRatings = new HashMap<Integer, Double>(); 
-
-        Map<Integer, Double> ratingSum = new HashMap<Integer, Double>();
-        Map<Integer, Integer> ratingCount = new HashMap<Integer, Integer>();
-
-        for(Integer userID : userIDs) {
-            for (MovieRating r : usersToRatings.get(userID)) {
-                if (!ratingSum.containsKey(r.getMovieID())) {
-                    ratingSum.put(r.getMovieID(), r.getRating()); 
-                    ratingCount.put(r.getMovieID(), 1); 
-                } else {
-                    ratingSum.put(r.getMovieID(), (ratingSum.get(r.getMovieID()) + r.getRating())); 
-                    ratingCount.put(r.getMovieID(), ratingCount.get(r.getMovieID()) + 1);
-                }
+        //Summed in the order of the compressed sparse row layout, i.e. by user and then in file order
+        double[] ratingSum = new double[movieIDs.size()];
+        for (int k = 0; k < ratingMovieIDs.length; k++) {
+            ratingSum[externalToInternalMovieIDs[ratingMovieIDs[k]]] += ratingValues[k];
+        }
+
+        movieAverageRatings = new double[movieIDs.size()];
+        for (int m = 0; m < movieAverageRatings.length; m++) {
+            movieAverageRatings[m] = ratingSum[m] / (movieRaterOffsets[m + 1] - movieRaterOffsets[m]);
+        }
+    }
+
+    /**
+     * Following methods support the binary snapshot of the parsed data.
+     *
+     * Layout: a header of SNAPSHOT_HEADER_SIZE bytes
+     *      magic (int), version (int), size of the rating file (long), modification time of the rating file (long),
+     *      numUsers (int), numMovies (int), numRatings (int)
+     * followed by the arrays userIDs, movieIDs, ratingOffsets, ratingMovieIDs, ratingValues, movieRaterOffsets,
+     * movieRaterUserIDs, movieRaterValues and movieAverageRatings, all big endian.
+     */
+
+    static final String SNAPSHOT_SUFFIX = ".snapshot";
+    //"MHSN"
+    private static final int SNAPSHOT_MAGIC = 0x4D48534E;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 36;
+
+    //Arrays are written through a buffer of this many bytes
+    private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Loads the snapshot of the rating file, if there is an up to date one.
+     * The arrays are copied in bulk out of a memory mapped file.
+     *
+     * @return whether the snapshot was loaded
+     */
+    private boolean loadSnapshot() {
+        File source = new File(ratingFile);
+        File snapshot = new File(ratingFile + SNAPSHOT_SUFFIX);
+        if (!snapshot.isFile()) {
+            return false;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r")) {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() < SNAPSHOT_HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_SIZE);
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            if (header.getLong() != source.length() || header.getLong() != source.lastModified()) {
+                System.out.println("Snapshot is stale, rebuilding it.");
+                return false;
             }
+            int numUsers = header.getInt();
+            int numMovies = header.getInt();
+            int numRatings = header.getInt();
+
+            long position = SNAPSHOT_HEADER_SIZE;
+            int[] userIDArray = new int[numUsers];
+            position = readInts(fc, position, userIDArray);
+            int[] movieIDArray = new int[numMovies];
+            position = readInts(fc, position, movieIDArray);
+            ratingOffsets = new int[numUsers + 1];
+            position = readInts(fc, position, ratingOffsets);
+            ratingMovieIDs = new int[numRatings];
+            position = readInts(fc, position, ratingMovieIDs);
+            ratingValues = new float[numRatings];
+            position = readFloats(fc, position, ratingValues);
+            movieRaterOffsets = new int[numMovies + 1];
+            position = readInts(fc, position, movieRaterOffsets);
+            movieRaterUserIDs = new int[numRatings];
+            position = readInts(fc, position, movieRaterUserIDs);
+            movieRaterValues = new float[numRatings];
+            position = readFloats(fc, position, movieRaterValues);
+            movieAverageRatings = new double[numMovies];
+            readDoubles(fc, position, movieAverageRatings);
+
+            userIDs = new ArrayList<Integer>(numUsers);
+            for (int id : userIDArray) {
+                userIDs.add(id);
+            }
+            movieIDs = new ArrayList<Integer>(numMovies);
+            for (int id : movieIDArray) {
+                movieIDs.add(id);
+            }
+            externalToInternalUserIDs = invertIDs(userIDs);
+            externalToInternalMovieIDs = invertIDs(movieIDs);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Couldn't load snapshot, reading the rating file instead.");
+            System.out.println(e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the snapshot of the rating file. It is written to a temporary file first and then renamed, so an
+     * interrupted run never leaves a half written snapshot behind.
+     */
+    private void saveSnapshot() {
+        File source = new File(ratingFile);
+        File snapshot = new File(ratingFile + SNAPSHOT_SUFFIX);
+        File temporary = new File(ratingFile + SNAPSHOT_SUFFIX + ".tmp");
+
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            FileChannel fc = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putInt(SNAPSHOT_VERSION);
+            buffer.putLong(source.length());
+            buffer.putLong(source.lastModified());
+            buffer.putInt(userIDs.size());
+            buffer.putInt(movieIDs.size());
+            buffer.putInt(ratingMovieIDs.length);
+            flush(fc, buffer);
+
+            int[] userIDArray = new int[userIDs.size()];
+            for (int u = 0; u < userIDArray.length; u++) {
+                userIDArray[u] = userIDs.get(u);
+            }
+            int[] movieIDArray = new int[movieIDs.size()];
+            for (int m = 0; m < movieIDArray.length; m++) {
+                movieIDArray[m] = movieIDs.get(m);
+            }
+
+            writeInts(fc, buffer, userIDArray);
+            writeInts(fc, buffer, movieIDArray);
+            writeInts(fc, buffer, ratingOffsets);
+            writeInts(fc, buffer, ratingMovieIDs);
+            writeFloats(fc, buffer, ratingValues);
+            writeInts(fc, buffer, movieRaterOffsets);
+            writeInts(fc, buffer, movieRaterUserIDs);
+            writeFloats(fc, buffer, movieRaterValues);
+            writeDoubles(fc, buffer, movieAverageRatings);
+        } catch (IOException e) {
+            System.out.println("Couldn't write snapshot " + snapshot);
+            System.out.println(e);
+            temporary.delete();
+            return;
         }
 
-        for (Map.Entry<Integer, Double> entry : ratingSum.entrySet()) {
-            int movieID = entry.getKey(); 
-            double avg = entry.getValue() / ratingCount.get(movieID);
-            movieAverageRatings.put(movieID, avg);
+        if (!temporary.renameTo(snapshot)) {
+            snapshot.delete();
+            if (!temporary.renameTo(snapshot)) {
+                System.out.println("Couldn't write snapshot " + snapshot);
+                temporary.delete();
+                return;
+            }
+        }
+        System.out.println("Wrote snapshot " + snapshot);
+    }
+
+    private static long readInts(FileChannel fc, long position, int[] array) throws IOException {
+        long bytes = 4L * array.length;
+        if (bytes > 0) {
+            fc.map(FileChannel.MapMode.READ_ONLY, position, bytes).asIntBuffer().get(array);
+        }
+        return position + bytes;
+    }
+
+    private static long readFloats(FileChannel fc, long position, float[] array) throws IOException {
+        long bytes = 4L * array.length;
+        if (bytes > 0) {
+            fc.map(FileChannel.MapMode.READ_ONLY, position, bytes).asFloatBuffer().get(array);
+        }
+        return position + bytes;
+    }
+
+    private static long readDoubles(FileChannel fc, long position, double[] array) throws IOException {
+        long bytes = 8L * array.length;
+        if (bytes > 0) {
+            fc.map(FileChannel.MapMode.READ_ONLY, position, bytes).asDoubleBuffer().get(array);
+        }
+        return position + bytes;
+    }
+
+    private static void writeInts(FileChannel fc, ByteBuffer buffer, int[] array) throws IOException {
+        for (int from = 0; from < array.length; ) {
+            int count = Math.min(array.length - from, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(array, from, count);
+            buffer.position(buffer.position() + 4 * count);
+            from += count;
+            flush(fc, buffer);
+        }
+    }
+
+    private static void writeFloats(FileChannel fc, ByteBuffer buffer, float[] array) throws IOException {
+        for (int from = 0; from < array.length; ) {
+            int count = Math.min(array.length - from, buffer.remaining() / 4);
+            buffer.asFloatBuffer().put(array, from, count);
+            buffer.position(buffer.position() + 4 * count);
+            from += count;
+            flush(fc, buffer);
+        }
+    }
+
+    private static void writeDoubles(FileChannel fc, ByteBuffer buffer, double[] array) throws IOException {
+        for (int from = 0; from < array.length; ) {
+            int count = Math.min(array.length - from, buffer.remaining() / 8);
+            buffer.asDoubleBuffer().put(array, from, count);
+            buffer.position(buffer.position() + 8 * count);
+            from += count;
+            flush(fc, buffer);
+        }
+    }
+
+    private static void flush(FileChannel fc, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fc.write(buffer);
         }
+        buffer.clear();
     }
 
     ArrayList<Integer> getMovieIDs() {
@@ -1,13 +1,21 @@
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
  * The MovieRunner can be ran from the commandline to predict user ratings.
  * Example command to run:
  *      java -cp .:bin/ MovieRunner -trainingFile data/ra.train -matrixFile data/ra.matrix -testFile data/ra.test
+ * or, computing the neighbors on demand instead of reading a matrix file:
+ *      java -cp .:bin/ MovieRunner -trainingFile data/ra.train -testFile data/ra.test -onlinePearson true
+ * or, item based with a movie-movie matrix computed by PearsonsCorrelation -itemBased true:
+ *      java -cp .:bin/ MovieRunner -trainingFile data/ra.train -matrixFile data/ra.items.matrix -testFile data/ra.test -itemBased true
  *
  * @author Toon Van Craenendonck
  * @author Pieter Robberechts
@@ -16,11 +24,9 @@ import java.util.*;
 public class MovieRunner {
 
     static MovieHandler ratings;
-    static PearsonsCorrelation similarities;
-    static boolean onlinePearson = false;
+    //Makes the predictions, all the state of a prediction lives there
+    static Recommender recommender;
     static String testFile;
-    static int[] external_to_internal_ids;
-    static float[] ratingAveragesOfUsersInternalIDs;
 
 
     /**
@@ -34,57 +40,20 @@ public class MovieRunner {
     //IMPLEMENT THIS!
 
     public static double predictRating(int externUserID, int movieID){
-        int internalUserID = external_to_internal_ids[externUserID];
-
-        double ratingsOfNN = 0;
-        double sumOfCorrelations = 0;
-
-        List<Neighbor> nnUsersCorrelations = similarities.getCorrelationsOfUsers()[internalUserID];
-        Map<Integer, List<MovieRating>> usersToRatings = ratings.getUsersToRatings();
-        for(int i=0; i<nnUsersCorrelations.size(); i++){ // i is internal ID
-
-            //get the ith NN
-            Neighbor nn = nnUsersCorrelations.get(i);
-            int nnInternalID = nn.id;
-
-            //get external ID of the neighbour
-            Integer nnExternalID = ratings.getUserIDs().get(nnInternalID);
-
-            //Movies rated by the neighbour
-            List<MovieRating> nnRatings = usersToRatings.get(nnExternalID);
-
-            //Check if neighbour has rated this movie
-            for(MovieRating mr : nnRatings){
-                if(mr.getMovieID() == movieID){
-                    double d1 = mr.getRating() - ratingAveragesOfUsersInternalIDs[nnInternalID];
-                    ratingsOfNN += nn.similarity * d1;
-                    sumOfCorrelations += Math.abs(nn.similarity);
-                    break;
-                }
-            }
-        }
-
-        double prediction;
-        float userAverageRating = ratingAveragesOfUsersInternalIDs[internalUserID];
-
-        if(sumOfCorrelations == 0) {
-            return userAverageRating;
-        }else{
-            prediction = userAverageRating + (ratingsOfNN/sumOfCorrelations);
-        }
-
-        if(prediction > 5){
-            return 5;
-        }
-
-        if(prediction < 0.5) {
-            return 0.5;
-        }
-
-        return prediction;
-
+        return recommender.predict(externUserID, movieID);
     }
 
+    /**
+     * Predict the ratings of user with external id externUserID for several movies at once,
+     * see Recommender.predictRatings.
+     *
+     * @param externUserID external id of user whose ratings should be predicted
+     * @param movieIDs movies for which the ratings should be predicted
+     * @return the predicted ratings, in the order of movieIDs
+     */
+    public static double[] predictRatings(int externUserID, int[] movieIDs){
+        return recommender.predictRatings(externUserID, movieIDs);
+    }
 
     /**
      * For each user/movie combination in the test set, predict the users'
@@ -107,8 +76,12 @@ public class MovieRunner {
         int elapsedTime = 0;
         try {
             br = new BufferedReader(new FileReader(testFile));
+            //Progress on the bytes read, the lines are ASCII so a char is a byte (+1 for the newline)
+            long fileSize = new File(testFile).length();
+            long bytesDone = 0;
             String line;
             while ((line = br.readLine()) != null) {
+                bytesDone += line.length() + 1;
                 String[] tokens = line.split("::|\t");
 
                 int userID = Integer.parseInt(tokens[0]);
@@ -129,10 +102,9 @@ public class MovieRunner {
                 }
                 if ((ctr % 50) == 0) {
                     elapsedTime = (int)(System.currentTimeMillis()/1000) - startTime;
-                    int remainingTime = (int) (elapsedTime * 698780f / ctr) - elapsedTime;
                     System.out.println("RMSE (default): " + Math.sqrt(summedErrorAvgSq/ctr)
                             + " RMSE (recommender): " + Math.sqrt(summedErrorRecommenderSq/ctr)
-                            + " Time remaining: " + (int) ((remainingTime / (60*60)) % 24) + "h" + (int) ((remainingTime / 60) % 60)
+                            + " Time remaining: " + remainingTime(elapsedTime, bytesDone, fileSize)
                     );
                 }
             }
@@ -142,19 +114,241 @@ public class MovieRunner {
         }
     }
 
-    private static void computeAverages(){
-        //Calculate and save all the deviations of users
-        List<Integer> userIDs = ratings.getUserIDs();
-        ratingAveragesOfUsersInternalIDs = new float[ratings.getNumUsers()];
-        for(int j=0; j<userIDs.size(); j++){ //j is the internal user id
-            int externalUserID = userIDs.get(j);
-            List<MovieRating> userRatings = ratings.getUsersToRatings().get(externalUserID);
-            float sumOfUserRatings = 0;
-            for(MovieRating mr : userRatings){
-                sumOfUserRatings += mr.getRating();
+    /**
+     * Same as evaluate, but the test lines are grouped by user and all the lines of a user are predicted at once
+     * with predictRatings. The errors are summed in the order of the test file, so the printed RMSE is the same
+     * as the one of evaluate.
+     *
+     * @param testFile path to file containing test set
+     */
+    public static void evaluateGroupedByUser(String testFile) {
+
+        //Read the whole test set
+        int numLines = 0;
+        int[] userIDs = new int[1 << 16];
+        int[] movieIDs = new int[1 << 16];
+        double[] trueRatings = new double[1 << 16];
+        try (BufferedReader br = new BufferedReader(new FileReader(testFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.split("::|\t");
+                if (numLines == userIDs.length) {
+                    userIDs = Arrays.copyOf(userIDs, 2 * numLines);
+                    movieIDs = Arrays.copyOf(movieIDs, 2 * numLines);
+                    trueRatings = Arrays.copyOf(trueRatings, 2 * numLines);
+                }
+                userIDs[numLines] = Integer.parseInt(tokens[0]);
+                movieIDs[numLines] = Integer.parseInt(tokens[1]);
+                trueRatings[numLines] = Double.parseDouble(tokens[2]);
+                numLines++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //Group the lines by user, (user << 32) | line keeps the file order within a user
+        long[] order = new long[numLines];
+        for (int j = 0; j < numLines; j++) {
+            order[j] = ((long) userIDs[j] << 32) | j;
+        }
+        Arrays.sort(order);
+
+        int startTime = (int) (System.currentTimeMillis()/1000);
+        double[] estimates = new double[numLines];
+        int groupStart = 0;
+        int usersDone = 0;
+        while (groupStart < numLines) {
+            int userID = (int) (order[groupStart] >>> 32);
+            int groupEnd = groupStart;
+            while (groupEnd < numLines && (int) (order[groupEnd] >>> 32) == userID) {
+                groupEnd++;
+            }
+
+            int[] groupMovieIDs = new int[groupEnd - groupStart];
+            for (int j = groupStart; j < groupEnd; j++) {
+                groupMovieIDs[j - groupStart] = movieIDs[(int) order[j]];
+            }
+            double[] groupEstimates = predictRatings(userID, groupMovieIDs);
+            for (int j = groupStart; j < groupEnd; j++) {
+                estimates[(int) order[j]] = groupEstimates[j - groupStart];
+            }
+
+            groupStart = groupEnd;
+            if ((++usersDone % 1000) == 0) {
+                int elapsedTime = (int)(System.currentTimeMillis()/1000) - startTime;
+                System.out.println("Predicted " + groupEnd + "/" + numLines + " test lines"
+                        + " Time remaining: " + remainingTime(elapsedTime, groupEnd, numLines)
+                );
+            }
+        }
+
+        double summedErrorRecommenderSq = 0;
+        double summedErrorAvgSq = 0;
+        for (int j = 0; j < numLines; j++) {
+            double avgRating = ratings.getMovieAverageRating(movieIDs[j]);
+            summedErrorRecommenderSq += Math.pow(trueRatings[j] - estimates[j], 2);
+            summedErrorAvgSq += Math.pow(trueRatings[j] - avgRating, 2);
+        }
+        System.out.println("RMSE (default): " + Math.sqrt(summedErrorAvgSq/numLines)
+                + " RMSE (recommender): " + Math.sqrt(summedErrorRecommenderSq/numLines)
+                + " Took " + ((int) (System.currentTimeMillis()/1000) - startTime) + " seconds."
+        );
+    }
+
+    /**
+     * Estimates the time left from the time spent so far and the part of the work that is done.
+     *
+     * @param elapsedTime seconds spent so far
+     * @param done        amount of work done, e.g. lines or bytes
+     * @param total       total amount of work, in the same unit as done
+     * @return the time left as XhY
+     */
+    static String remainingTime(long elapsedTime, double done, double total) {
+        long remainingTime = (long) (elapsedTime * total / done) - elapsedTime;
+        return (remainingTime / (60*60)) % 24 + "h" + (remainingTime / 60) % 60;
+    }
+
+    //Size of the chunks of the test file handed to the workers of evaluateParallel
+    private static final int EVALUATION_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * Error sums of a part of the test set. Every chunk gets its own, they are merged at the end so the
+     * workers never share any state.
+     */
+    static class ErrorSums {
+        long count = 0;
+        double summedErrorRecommenderSq = 0;
+        double summedErrorAvgSq = 0;
+        double summedErrorRecommenderAbs = 0;
+        double summedErrorAvgAbs = 0;
+
+        void add(ErrorSums other) {
+            count += other.count;
+            summedErrorRecommenderSq += other.summedErrorRecommenderSq;
+            summedErrorAvgSq += other.summedErrorAvgSq;
+            summedErrorRecommenderAbs += other.summedErrorRecommenderAbs;
+            summedErrorAvgAbs += other.summedErrorAvgAbs;
+        }
+
+        @Override
+        public String toString() {
+            return "RMSE (default): " + Math.sqrt(summedErrorAvgSq/count)
+                    + " RMSE (recommender): " + Math.sqrt(summedErrorRecommenderSq/count)
+                    + " MAE (default): " + summedErrorAvgAbs/count
+                    + " MAE (recommender): " + summedErrorRecommenderAbs/count;
+        }
+    }
+
+    /**
+     * Parallel version of evaluate. The test file is read in chunks of whole lines, which are parsed and
+     * predicted by a pool of worker threads. Every chunk sums its own errors, the sums are merged in file order
+     * so the result does not depend on the scheduling. Progress is reported on the bytes of the test file that
+     * have been evaluated.
+     *
+     * @param testFile   path to file containing test set
+     * @param numThreads number of worker threads
+     */
+    public static void evaluateParallel(String testFile, int numThreads) {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<ErrorSums>> inFlight = new ArrayDeque<Future<ErrorSums>>();
+        ArrayDeque<Integer> inFlightBytes = new ArrayDeque<Integer>();
+        ErrorSums total = new ErrorSums();
+
+        long startTime = System.currentTimeMillis();
+        long bytesDone = 0;
+        //Offset in the file of the next chunk
+        long chunkOffset = 0;
+        try (FileInputStream in = new FileInputStream(testFile)) {
+            long fileSize = in.getChannel().size();
+
+            //Bytes after the last newline of the previous chunk
+            byte[] leftover = new byte[0];
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                byte[] chunk = new byte[Math.max(EVALUATION_CHUNK_SIZE, 2 * leftover.length)];
+                System.arraycopy(leftover, 0, chunk, 0, leftover.length);
+                int length = leftover.length;
+                int n;
+                while (length < chunk.length && (n = in.read(chunk, length, chunk.length - length)) > 0) {
+                    length += n;
+                }
+                endOfFile = length < chunk.length;
+
+                //Only hand out whole lines, the rest goes to the next chunk
+                int end = length;
+                if (!endOfFile) {
+                    while (end > 0 && chunk[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        //A line longer than the chunk, read further
+                        leftover = Arrays.copyOf(chunk, length);
+                        continue;
+                    }
+                }
+                leftover = Arrays.copyOfRange(chunk, end, length);
+
+                final byte[] lines = chunk;
+                final int linesEnd = end;
+                final long linesOffset = chunkOffset;
+                inFlight.add(pool.submit(new Callable<ErrorSums>() {
+                    @Override
+                    public ErrorSums call() {
+                        return evaluateChunk(lines, linesEnd, linesOffset);
+                    }
+                }));
+                inFlightBytes.add(end);
+                chunkOffset += end;
+
+                //Merge the oldest chunks once enough work is queued, this keeps the memory bounded
+                while (inFlight.size() >= 2 * numThreads || (endOfFile && !inFlight.isEmpty())) {
+                    total.add(inFlight.poll().get());
+                    bytesDone += inFlightBytes.poll();
+
+                    long elapsedTime = (System.currentTimeMillis() - startTime) / 1000;
+                    System.out.println(total + " Time remaining: " + remainingTime(elapsedTime, bytesDone, fileSize));
+                }
+            }
+        } catch (ExecutionException e) {
+            //A malformed line, fail like evaluate does
+            if (e.getCause() instanceof NumberFormatException) {
+                throw (NumberFormatException) e.getCause();
             }
-            ratingAveragesOfUsersInternalIDs[j] = sumOfUserRatings / userRatings.size();
+            e.printStackTrace();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
         }
+
+        System.out.println("Evaluated " + total.count + " test lines, took "
+                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds.");
+        System.out.println(total);
+    }
+
+    /**
+     * Parses and predicts the test lines in bytes[0 ... end-1], see RatingLineParser.
+     *
+     * @param bytes      whole lines of the test file
+     * @param end        number of bytes to parse
+     * @param fileOffset offset in the test file of bytes[0]
+     * @return the error sums of the lines
+     */
+    private static ErrorSums evaluateChunk(byte[] bytes, int end, long fileOffset) {
+        ErrorSums sums = new ErrorSums();
+        RatingLineParser parser = new RatingLineParser(ByteBuffer.wrap(bytes), 0, end, fileOffset);
+        while (parser.next()) {
+            double rating = parser.rating;
+            double avgRating = ratings.getMovieAverageRating(parser.movieID);
+            double estimate = predictRating(parser.userID, parser.movieID);
+
+            sums.count++;
+            sums.summedErrorRecommenderSq += Math.pow(rating - estimate, 2);
+            sums.summedErrorAvgSq += Math.pow(rating - avgRating, 2);
+            sums.summedErrorRecommenderAbs += Math.abs(rating - estimate);
+            sums.summedErrorAvgAbs += Math.abs(rating - avgRating);
+        }
+        return sums;
     }
 
     public static void main(String[] args) {
@@ -163,6 +357,15 @@ public class MovieRunner {
         String testFile = "";
         String matrixFile = null;
         int kNN = 1000;
+        boolean groupByUser = false;
+        int numThreads = 1;
+        boolean useSnapshot = false;
+        boolean offHeapNeighbors = false;
+        int minCommonRatedMovies = 1;
+        boolean precomputedMeans = false;
+        int neighborCacheSize = 10000;
+        boolean onlinePearson = false;
+        boolean itemBased = false;
 
         int i = 0;
         while (i < args.length && args[i].startsWith("-")) {
@@ -173,29 +376,59 @@ public class MovieRunner {
                 testFile = args[i+1];
             } else if(arg.equals("-matrixFile")) {
                 matrixFile = args[i+1];
+            } else if(arg.equals("-itemBased")) {
+                itemBased = args[i+1].equals("true");
             } else if(arg.equals("-onlinePearson")) {
-                onlinePearson = true;
+                onlinePearson = args[i+1].equals("true");
+            } else if(arg.equals("-minCommonRatedMovies")){
+                minCommonRatedMovies = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-precomputedMeans")){
+                precomputedMeans = args[i+1].equals("true");
+            } else if(arg.equals("-neighborCacheSize")){
+                neighborCacheSize = Integer.parseInt(args[i+1]);
             } else if(arg.equals("-kNN")){
                 kNN = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-groupByUser")){
+                groupByUser = args[i+1].equals("true");
+            } else if(arg.equals("-snapshot")){
+                useSnapshot = args[i+1].equals("true");
+            } else if(arg.equals("-offHeapNeighbors")){
+                offHeapNeighbors = args[i+1].equals("true");
+            } else if(arg.equals("-threads")){
+                numThreads = Integer.parseInt(args[i+1]);
+                if (numThreads < 1) {
+                    System.out.println("Possible threads values are positive numbers.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
             }
             // ADD ADDITIONAL PARAMETERS HERE //
             i += 2;
         }
 
+        if (numThreads > 1 && groupByUser) {
+            System.out.println("-groupByUser true can't be combined with more than 1 thread.");
+            System.out.println("Program exiting...");
+            System.exit(1);
+        }
 
-        ratings = new MovieHandler(trainingFile);
-        similarities = new PearsonsCorrelation(ratings, matrixFile, kNN);
+        ratings = new MovieHandler(trainingFile, useSnapshot);
+        recommender = Recommender.open(ratings, matrixFile, kNN, itemBased, onlinePearson, minCommonRatedMovies,
+                precomputedMeans, neighborCacheSize, offHeapNeighbors);
 
-        //Keep a track of Externals To Internals movie IDs
-        List<Integer> userIds = ratings.getUserIDs();
-        int maxExternalUserID = userIds.get(ratings.getUserIDs().size()-1);
-        external_to_internal_ids = new int[maxExternalUserID + 1];
-        for(int j=0; j<ratings.getUserIDs().size(); j++){
-            external_to_internal_ids[userIds.get(j)] = j;
+        if (numThreads > 1) {
+            evaluateParallel(testFile, numThreads);
+        } else if (groupByUser) {
+            evaluateGroupedByUser(testFile);
+        } else {
+            evaluate(testFile);
+        }
+        OnlineNeighbors onlineNeighbors = recommender.getOnlineNeighbors();
+        if (onlineNeighbors != null) {
+            System.out.println("Neighbors computed for " + onlineNeighbors.getCacheMisses()
+                    + (itemBased ? " movies, " : " users, ")
+                    + onlineNeighbors.getCacheHits() + " cache hits.");
         }
-
-        computeAverages();
-        evaluate(testFile);
 
     }
 
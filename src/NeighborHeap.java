@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/**
+ * Bounded min-heap that keeps the k neighbors with the highest absolute correlation, using primitive arrays
+ * only. Correlations are the encoded shorts of the matrix (rounded to 4 decimal digits and multiplied by 10000).
+ * <p>
+ * The order is the same as sorting a list of Neighbors with Collections.sort (stable) after adding them with
+ * increasing id: highest absolute correlation first, ties broken by the lowest id. The root of the heap is the
+ * neighbor that would be dropped first, i.e. the lowest absolute correlation and among those the highest id.
+ */
+class NeighborHeap {
+
+    private final int k;
+    private int[] ids;
+    private short[] values;
+    private int size = 0;
+
+    NeighborHeap(int k) {
+        this(k, k);
+    }
+
+    /**
+     * A heap that starts small and grows up to k as neighbors are offered, for when many heaps are kept at once
+     * and most of them never fill up.
+     *
+     * @param k               number of neighbors kept
+     * @param initialCapacity number of neighbors there is room for before the arrays grow
+     */
+    NeighborHeap(int k, int initialCapacity) {
+        this.k = k;
+        this.ids = new int[Math.min(k, initialCapacity)];
+        this.values = new short[ids.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Offers a neighbor, it is kept if it is among the k best seen since the last clear().
+     *
+     * @param id  id of the neighbor
+     * @param val encoded correlation, must not be Short.MAX_VALUE (NaN)
+     */
+    void offer(int id, short val) {
+        if (size < k) {
+            if (size == ids.length) {
+                int capacity = (int) Math.min(k, 2L * size + 1);
+                ids = Arrays.copyOf(ids, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            ids[size] = id;
+            values[size] = val;
+            siftUp(size++);
+        } else if (k > 0 && worse(ids[0], values[0], id, val)) {
+            ids[0] = id;
+            values[0] = val;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empties the heap into the given arrays, best neighbor first.
+     *
+     * @param outIds    receives the ids, at least size() long
+     * @param outValues receives the encoded correlations, at least size() long
+     * @return the number of neighbors written
+     */
+    int drainSorted(int[] outIds, short[] outValues) {
+        int count = size;
+        //Popping the root gives the worst neighbor first, so fill from the back
+        while (size > 0) {
+            outIds[size - 1] = ids[0];
+            outValues[size - 1] = values[0];
+            size--;
+            ids[0] = ids[size];
+            values[0] = values[size];
+            siftDown(0);
+        }
+        return count;
+    }
+
+    //true if neighbor a should be dropped before neighbor b
+    private static boolean worse(int idA, short valA, int idB, short valB) {
+        int absA = Math.abs(valA);
+        int absB = Math.abs(valB);
+        if (absA != absB) {
+            return absA < absB;
+        }
+        return idA > idB;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!worse(ids[index], values[index], ids[parent], values[parent])) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < size && worse(ids[right], values[right], ids[left], values[left])) {
+                worst = right;
+            }
+            if (!worse(ids[worst], values[worst], ids[index], values[index])) {
+                return;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        short val = values[a];
+        values[a] = values[b];
+        values[b] = val;
+    }
+
+}
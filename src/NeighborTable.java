@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The kNN neighbors of all users packed in a struct of arrays, instead of a List of Neighbor objects per user.
+ * The neighbors of internal user u are at the positions start(u) ... end(u)-1, best neighbor first, and every
+ * position holds the internal ID of the neighbor and its correlation.
+ * <p>
+ * Correlations are kept in the short encoding of the matrix files (rounded to 4 decimal digits and multiplied
+ * by 10000) and decoded through a lookup table, this takes 2 bytes per neighbor and gives exactly the doubles
+ * the readers produced before. The arrays can be allocated off-heap, so multi-GB tables do not burden the GC.
+ * <p>
+ * The table is filled in two steps: the readers call setNeighbors for every user (from several threads if
+ * needed, every user gets a slot of maxNeighborsPerUser positions), then pack() removes the unused positions.
+ * The accessors can only be used after pack().
+ */
+class NeighborTable {
+
+    //Decoded correlation of every encoded value -10000 ... 10000
+    private static final double[] DECODED_SIMILARITIES = new double[20001];
+
+    static {
+        for (int val = -10000; val <= 10000; val++) {
+            DECODED_SIMILARITIES[val + 10000] = PearsonsCorrelation.shortToCorrelation((short) val);
+        }
+    }
+
+    private final int numUsers;
+    private final int maxNeighborsPerUser;
+
+    //Before pack() the number of neighbors of every user, after pack() the offsets (numUsers+1 long)
+    private final int[] offsets;
+    private final IntBuffer neighborIDs;
+    private final ShortBuffer similarities;
+    private boolean packed = false;
+
+    /**
+     * @param numUsers            number of users
+     * @param maxNeighborsPerUser the kNN, at most this many neighbors are stored per user
+     * @param offHeap             allocate the neighbor arrays outside of the Java heap
+     */
+    NeighborTable(int numUsers, int maxNeighborsPerUser, boolean offHeap) {
+        long capacity = (long) numUsers * maxNeighborsPerUser;
+        if (capacity > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("Neighbor table of " + numUsers + " users with "
+                    + maxNeighborsPerUser + " neighbors each is too large");
+        }
+        this.numUsers = numUsers;
+        this.maxNeighborsPerUser = maxNeighborsPerUser;
+        this.offsets = new int[numUsers + 1];
+        if (offHeap) {
+            this.neighborIDs = ByteBuffer.allocateDirect(4 * (int) capacity).order(ByteOrder.nativeOrder()).asIntBuffer();
+            this.similarities = ByteBuffer.allocateDirect(2 * (int) capacity).order(ByteOrder.nativeOrder()).asShortBuffer();
+        } else {
+            this.neighborIDs = IntBuffer.wrap(new int[(int) capacity]);
+            this.similarities = ShortBuffer.wrap(new short[(int) capacity]);
+        }
+    }
+
+    /**
+     * Stores the neighbors of a user. Different users can be set from different threads.
+     *
+     * @param user   internal user ID
+     * @param ids    internal IDs of the neighbors, best neighbor first
+     * @param values encoded correlations of the neighbors
+     * @param count  number of neighbors, at most maxNeighborsPerUser
+     */
+    void setNeighbors(int user, int[] ids, short[] values, int count) {
+        int slot = user * maxNeighborsPerUser;
+        for (int k = 0; k < count; k++) {
+            neighborIDs.put(slot + k, ids[k]);
+            similarities.put(slot + k, values[k]);
+        }
+        offsets[user + 1] = count;
+    }
+
+    /**
+     * Moves the neighbors of every user right after the ones of the previous user.
+     * Must be called once all users are set, and before the accessors are used.
+     */
+    void pack() {
+        for (int user = 0; user < numUsers; user++) {
+            int count = offsets[user + 1];
+            int from = user * maxNeighborsPerUser;
+            int to = offsets[user];
+            //to <= from, so moving forward never overwrites rows that still have to be moved
+            if (from != to) {
+                for (int k = 0; k < count; k++) {
+                    neighborIDs.put(to + k, neighborIDs.get(from + k));
+                    similarities.put(to + k, similarities.get(from + k));
+                }
+            }
+            offsets[user + 1] = to + count;
+        }
+        packed = true;
+    }
+
+    int getNumUsers() {
+        return numUsers;
+    }
+
+    /**
+     * @return first position of the neighbors of the user
+     */
+    int start(int user) {
+        return offsets[user];
+    }
+
+    /**
+     * @return last position (exclusive) of the neighbors of the user
+     */
+    int end(int user) {
+        return offsets[user + 1];
+    }
+
+    /**
+     * @return internal ID of the neighbor at the position
+     */
+    int getNeighborID(int position) {
+        return neighborIDs.get(position);
+    }
+
+    /**
+     * @return correlation of the neighbor at the position
+     */
+    double getSimilarity(int position) {
+        return DECODED_SIMILARITIES[similarities.get(position) + 10000];
+    }
+
+    /**
+     * Builds a list of Neighbor objects for one user, only for compatibility with code using Neighbor lists.
+     */
+    List<Neighbor> toNeighborList(int user) {
+        if (!packed) {
+            throw new IllegalStateException("Neighbor table is not packed yet");
+        }
+        List<Neighbor> list = new ArrayList<Neighbor>(end(user) - start(user));
+        for (int k = start(user); k < end(user); k++) {
+            list.add(new Neighbor(getNeighborID(k), getSimilarity(k)));
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes the kNN neighbors of a user on demand from the ratings, instead of reading them from a correlation
+ * matrix file. This is used by the -onlinePearson mode of the MovieRunner.
+ * <p>
+ * The correlations of a user with all other users are computed with the look up array kernel of
+ * PearsonsCorrelation the first time the user is asked for, and the best kNN are kept in a bounded heap, so the
+ * neighbors are the same as the ones read from a matrix computed with the same parameters. The neighbors of the
+ * last cacheSize users are kept in an LRU cache, test lines of a user are normally close to each other.
+ * <p>
+ * getNeighbors can be called from several threads, every thread has its own look up array and heap.
+ */
+class OnlineNeighbors {
+
+    private final MovieHandler ratings;
+    private final PearsonsCorrelation kernels = new PearsonsCorrelation();
+    private final int kNN;
+    private final int minCommonRatedMovies;
+    //Precomputed means by internal ID, or null to not use precomputed means
+    private final float[] means;
+
+    //internal user ID -> neighbors of the user, stored as row 0 of a NeighborTable, least recently used first
+    private final LinkedHashMap<Integer, NeighborTable> cache;
+
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * @param ratings              the ratings
+     * @param kNN                  number of NN to be considered
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param precomputedMeans     whether to use correlationWithPrecomputedMeansFastLookUp
+     * @param cacheSize            number of users whose neighbors are cached
+     */
+    OnlineNeighbors(MovieHandler ratings, int kNN, int minCommonRatedMovies, boolean precomputedMeans,
+                    final int cacheSize) {
+        this.ratings = ratings;
+        //Never more neighbors than other users
+        this.kNN = Math.max(0, Math.min(kNN, ratings.getNumUsers() - 1));
+        this.minCommonRatedMovies = minCommonRatedMovies;
+        this.means = precomputedMeans ? kernels.precomputeUsersMeansInternalIDs(ratings) : null;
+        this.cache = new LinkedHashMap<Integer, NeighborTable>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, NeighborTable> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the neighbors of a user, best neighbor first, computing them if they are not cached.
+     *
+     * @param internalUserID the user
+     * @return a table holding the neighbors of the user as its only row (row 0)
+     */
+    NeighborTable getNeighbors(int internalUserID) {
+        synchronized (cache) {
+            NeighborTable neighbors = cache.get(internalUserID);
+            if (neighbors != null) {
+                cacheHits++;
+                return neighbors;
+            }
+            cacheMisses++;
+        }
+
+        //Computed outside of the lock, two threads asking for the same user at once both compute it
+        Scratch s = scratch.get();
+        kernels.computeNeighbors(internalUserID, ratings, means, s.lookUpArray, -1f, minCommonRatedMovies,
+                s.commonRatedMovies, s.heap);
+        NeighborTable neighbors = new NeighborTable(1, kNN, false);
+        neighbors.setNeighbors(0, s.ids, s.values, s.heap.drainSorted(s.ids, s.values));
+        neighbors.pack();
+
+        synchronized (cache) {
+            cache.put(internalUserID, neighbors);
+        }
+        return neighbors;
+    }
+
+    long getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    long getCacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
+        }
+    }
+
+    private class Scratch {
+        final float[] lookUpArray;
+        final int[] commonRatedMovies = new int[ratings.getNumUsers()];
+        final NeighborHeap heap = new NeighborHeap(kNN);
+        final int[] ids = new int[kNN];
+        final short[] values = new short[kNN];
+
+        Scratch() {
+            int maxMovieID = ratings.getMovieIDs().get(ratings.getNumMovies() - 1); //movies are sorted
+            lookUpArray = new float[maxMovieID + 1];
+            Arrays.fill(lookUpArray, -1f);
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+/**
+ * A Pearson correlation kernel over the compressed sparse row layout of the MovieHandler, with the ratings of
+ * user X in a look up array (see PearsonsCorrelation.correlationFastLookUp for the parameters).
+ * <p>
+ * Only implemented by the optional VectorPearsonKernel (src-vector), which PearsonsCorrelation loads at runtime
+ * when asked to and when the Vector API is available. Its sums must be the same as the scalar kernel's up to the
+ * 4 decimal digits the matrix stores.
+ */
+interface PearsonKernel {
+
+    double correlation(int yStart, int yEnd,
+                       int[] movieIDs,
+                       float[] ratings,
+                       float[] lookUpArray,
+                       float lookUpArrayFlag,
+                       int minCommonRatedMovies);
+
+}
@@ -1,5 +1,12 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PearsonsCorrelation {
 
@@ -107,20 +114,109 @@ public class PearsonsCorrelation {
     }
 
 
+    /**
+     * Same as correlationFastLookUp above, but for the ratings of user Y in the compressed sparse row layout of
+     * the MovieHandler, i.e. the positions yStart ... yEnd-1 of movieIDs and ratings.
+     *
+     * @param yStart               first position of the ratings of user Y
+     * @param yEnd                 last position (exclusive) of the ratings of user Y
+     * @param movieIDs             movie IDs of the compressed sparse row layout
+     * @param ratings              ratings of the compressed sparse row layout
+     * @param lookUpArray          a look up array populated with the ratings of user X
+     * @param lookUpArrayFlag      the special lookUpArray flag value
+     * @param minCommonRatedMovies min number of movies to define a Pearson correlation else Float.Nan is returned
+     * @return the correlation of user X and Y
+     */
+    double correlationFastLookUp(int yStart, int yEnd,
+                                 int[] movieIDs,
+                                 float[] ratings,
+                                 float[] lookUpArray,
+                                 float lookUpArrayFlag,
+                                 int minCommonRatedMovies) {
+        //Users with many ratings go to the SIMD kernel if it is enabled, see useVectorKernel
+        PearsonKernel kernel = vectorKernel;
+        if (kernel != null && yEnd - yStart >= VECTOR_KERNEL_MIN_RATINGS) {
+            return kernel.correlation(yStart, yEnd, movieIDs, ratings, lookUpArray, lookUpArrayFlag,
+                    minCommonRatedMovies);
+        }
+
+        //I need E[X], E[Y], E[XY], E[X^2], E[Y^2]
+        int commonRatedMovies = 0;
+        double sumOfXi = 0;
+        double sumOfYi = 0;
+        double sumOfXiSquared = 0;
+        double sumOfYiSquared = 0;
+        double sumOfXiYi = 0;
+
+        for (int k = yStart; k < yEnd; k++) {
+
+            double xRating = lookUpArray[movieIDs[k]];
+            //Common element , do stuff!
+            if (xRating != lookUpArrayFlag) {
+
+                double yRating = ratings[k];
+
+                sumOfXi += xRating;
+                sumOfYi += yRating;
+
+                sumOfXiSquared += xRating * xRating;
+                sumOfYiSquared += yRating * yRating;
+
+                sumOfXiYi += xRating * yRating;
+
+                commonRatedMovies++;
+            }
+        }
+
+        // If the number of rated movies is less than the minimum required to define a common correlation
+        if (commonRatedMovies < minCommonRatedMovies) {
+            return Float.NaN;
+        }
+
+        double numerator = (commonRatedMovies * sumOfXiYi) - (sumOfXi * sumOfYi);
+        double denominator = Math.sqrt(commonRatedMovies * sumOfXiSquared - (sumOfXi * sumOfXi)) *
+                Math.sqrt(commonRatedMovies * sumOfYiSquared - (sumOfYi * sumOfYi));
+
+        return numerator / denominator;
+    }
+
+
+    //The SIMD kernel, null if the scalar kernel is used for every user
+    private static volatile PearsonKernel vectorKernel = null;
+
+    //Users with fewer ratings than this always use the scalar kernel, the vectors would be mostly tail
+    static final int VECTOR_KERNEL_MIN_RATINGS = 64;
+
+    /**
+     * Switches correlationFastLookUp to the SIMD kernel (VectorPearsonKernel) for users with many ratings.
+     * The kernel lives in src-vector and needs the incubating Vector API, i.e. it has to be compiled and run with
+     * --add-modules jdk.incubator.vector. If it is not on the class path or the module is missing, the scalar
+     * kernel stays in use.
+     *
+     * @return whether the SIMD kernel is used
+     */
+    static boolean useVectorKernel() {
+        try {
+            vectorKernel = (PearsonKernel) Class.forName("VectorPearsonKernel").getDeclaredConstructor().newInstance();
+            return true;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.out.println("Vector API kernel not available (" + e + "), using the scalar kernel.");
+            vectorKernel = null;
+            return false;
+        }
+    }
+
+
     private void computeCorrelationsFastLookup(MovieHandler ratings,
                                                String outputFile,
                                                int minCommonRatedMovies,
                                                int RESIZE_CONSTANT) {
 
-        //Open buffered writer and write matrix size & optional parameters
-        //I keep the buffered writer open during the whole duration of the program as I need to write to disk often
-        BufferedWriter bw = null;
+        //Open the matrix writer and write matrix size & optional parameters
+        CorrelationMatrixWriter writer = null;
         try {
-            bw = new BufferedWriter(new FileWriter(outputFile));
-            bw.write("" + ratings.getNumUsers());
-            bw.newLine();
-            bw.write("precomputedMeans=false,minCommonRatedMovies=" + minCommonRatedMovies);
-            bw.newLine();
+            writer = CorrelationMatrixWriter.open(outputFile, ratings.getNumUsers(), false, minCommonRatedMovies,
+                    binaryOutput, topK);
         } catch (IOException e) {
             System.out.println("Exception at initialization");
             e.printStackTrace();
@@ -129,11 +225,16 @@ public class PearsonsCorrelation {
         }
 
 
-        SerializableListManager listManager = new SerializableListManager(ratings.getNumUsers(), RESIZE_CONSTANT);
+        SerializableListManager listManager = new SerializableListManager(ratings.getNumUsers(), RESIZE_CONSTANT,
+                spillMemory, prefetchDepth, prefetchMemory);
 
 
         ArrayList<Integer> userIDs = ratings.getUserIDs();
-        Map<Integer, List<MovieRating>> usersToRatings = ratings.getUsersToRatings();
+
+        //Ratings in the compressed sparse row layout, see MovieHandler
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
 
 
         //Help array to make printing faster, this array just keeps track of the correlations of the current processed
@@ -151,38 +252,50 @@ public class PearsonsCorrelation {
         // But it only happens once and this is more "general case" so its okay.
         Arrays.fill(lookUpArray, lookUpArrayFlag);
 
+        //Common movies of the current user with every later user, see countCommonRatedMovies
+        int[] commonRatedMovies = coCountPrefilter ? new int[userIDs.size()] : null;
+        long pruned = 0;
+
         //For all users
         for (int i = 0; i < userIDs.size(); i++) {
 
-            Integer xID = userIDs.get(i);
-            List<MovieRating> userRatings1 = usersToRatings.get(xID);
+            int xStart = ratingOffsets[i];
+            int xEnd = ratingOffsets[i + 1];
 
             //Ratings 0.5 to 5, definitely not -1
             //Prepare the look up array
-            for (MovieRating rating : userRatings1) {
-                lookUpArray[rating.getMovieID()] = (float) rating.getRating();
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
             }
 
             //Print what I already have computed and are stored in the ArrayList
             for (int j = 0; j < i; j++) {
                 short val = listManager.getElementFromList(i, j);
-                shortToChar(val);
+                writer.add(val);
             }
 
             /* Cov(X,X) self-correlation is always NaN in my implementation */
-            shortToChar(Short.MAX_VALUE);
+            writer.add(Short.MAX_VALUE);
 
             //Free memory of already computed correlations I no longer need.
             listManager.deleteList(i);
 
+            if (commonRatedMovies != null) {
+                countCommonRatedMovies(i, i + 1, ratings, commonRatedMovies);
+            }
+
             //Start from i+1, don't need to compute self or recompute already computed ratings
             //Since Cor(X,X) = 1, and Cor(X,Y) = Cor(Y,X)
             for (int j = i + 1; j < userIDs.size(); j++) {
-                Integer yID = userIDs.get(j);
-                List<MovieRating> userRatings2 = usersToRatings.get(yID);
-
-                //get the correlation
-                double cor = correlationFastLookUp(userRatings2, lookUpArray, lookUpArrayFlag, minCommonRatedMovies);
+                //get the correlation, pairs with too few common movies are NaN without asking the kernel
+                double cor;
+                if (commonRatedMovies != null && commonRatedMovies[j] < minCommonRatedMovies) {
+                    pruned++;
+                    cor = Float.NaN;
+                } else {
+                    cor = correlationFastLookUp(ratingOffsets[j], ratingOffsets[j + 1], ratingMovieIDs,
+                            ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies);
+                }
 
                 if (Float.isNaN((float) cor)) {
                     listManager.addElementToList(j, Short.MAX_VALUE);
@@ -197,8 +310,11 @@ public class PearsonsCorrelation {
             }
 
             //Reverse look up array to the original state
-            for (MovieRating rating : userRatings1) {
-                lookUpArray[rating.getMovieID()] = lookUpArrayFlag;
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = lookUpArrayFlag;
+            }
+            if (commonRatedMovies != null) {
+                Arrays.fill(commonRatedMovies, i + 1, userIDs.size(), 0);
             }
 
             /*
@@ -207,13 +323,11 @@ public class PearsonsCorrelation {
 
             for (int j = 0; j < printHelpCounter; j++) {
                 short val = printHelpArray[j];
-                shortToChar(val);
+                writer.add(val);
             }
 
-            printChars[printCharsCounter - 1] = '\n'; //note -1 here to delete last comma and put a break line instead!
-
             try {
-                bw.write(printChars, 0, printCharsCounter);
+                writer.endRow();
             } catch (IOException e) {
                 System.out.println("Exception at write");
                 e.printStackTrace();
@@ -221,14 +335,16 @@ public class PearsonsCorrelation {
                 System.exit(-2);
             }
 
-            //Since I am finishing the printing I need to reverse the 2 counters back to their original state
-            printCharsCounter = 0;
+            //Since I am finishing the printing I need to reverse the counter back to its original state
             printHelpCounter = 0;
 
         }
 
+        listManager.close();
+        printPrunedPairs(pruned, ratings.getNumUsers());
+
         try {
-            bw.close();
+            writer.close();
         } catch (IOException e) {
             System.out.println("Exception at close");
             e.printStackTrace();
@@ -308,6 +424,68 @@ public class PearsonsCorrelation {
     }
 
 
+    /**
+     * Same as correlationWithPrecomputedMeansFastLookUp above, but for the ratings of user Y in the compressed
+     * sparse row layout of the MovieHandler, i.e. the positions yStart ... yEnd-1 of movieIDs and ratings.
+     *
+     * @param yStart               first position of the ratings of user Y
+     * @param yEnd                 last position (exclusive) of the ratings of user Y
+     * @param movieIDs             movie IDs of the compressed sparse row layout
+     * @param ratings              ratings of the compressed sparse row layout
+     * @param lookUpArray          a look up array populated by ratings of user X
+     * @param lookUpArrayFlag      the special flag value
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param meanX                mean of user X (E[X])
+     * @param meanY                mean of user Y (E[Y])
+     * @return the correlation of user X and Y
+     */
+    double correlationWithPrecomputedMeansFastLookUp(int yStart, int yEnd,
+                                                     int[] movieIDs,
+                                                     float[] ratings,
+                                                     float[] lookUpArray,
+                                                     float lookUpArrayFlag,
+                                                     int minCommonRatedMovies,
+                                                     float meanX, float meanY) {
+        int commonRatedMovies = 0;
+
+        //Numerator Sum[(Xi - E[Xi])(Yi - E[Yi])]
+        double numerator = 0;
+
+        //Denominator sqrt((Sum[Xi - E[Xi]])^2 * (Sum[Yi - E[Yi]])^2)
+        double sumXiMinusMeanXiSquared = 0;
+        double sumYiMinusMeanYiSquared = 0;
+
+        for (int k = yStart; k < yEnd; k++) {
+
+            double xRating = lookUpArray[movieIDs[k]];
+            //Common element , do stuff!
+            if (xRating != lookUpArrayFlag) {
+
+                double yRating = ratings[k];
+
+                double xiMinusMeanXi = xRating - meanX;
+                double yiMinusMeanYi = yRating - meanY;
+
+                numerator += xiMinusMeanXi * yiMinusMeanYi;
+
+                sumXiMinusMeanXiSquared += xiMinusMeanXi * xiMinusMeanXi;
+                sumYiMinusMeanYiSquared += yiMinusMeanYi * yiMinusMeanYi;
+
+                commonRatedMovies++;
+            }
+        }
+
+        // If the number of rated movies is less than the minimum required to define a common correlation
+        if (commonRatedMovies < minCommonRatedMovies) {
+            return Float.NaN;
+        }
+
+        double denominator = Math.sqrt(sumXiMinusMeanXiSquared * sumYiMinusMeanYiSquared);
+
+        return numerator / denominator;
+    }
+
+
     private void computeCorrelationsWithPrecomputedMeansFastLookup(MovieHandler ratings,
                                                                    String outputFile,
                                                                    int minCommonRatedMovies,
@@ -316,14 +494,11 @@ public class PearsonsCorrelation {
         //Compute the average rating of each user and the global
         float[] precomputedMeansInternalIDs = precomputeUsersMeansInternalIDs(ratings);
 
-        //Open bufferedwriter and write matrix size & optional parameters
-        BufferedWriter bw = null;
+        //Open the matrix writer and write matrix size & optional parameters
+        CorrelationMatrixWriter writer = null;
         try {
-            bw = new BufferedWriter(new FileWriter(outputFile));
-            bw.write("" + ratings.getNumUsers());
-            bw.newLine();
-            bw.write("precomputedMeans=true,minCommonRatedMovies=" + minCommonRatedMovies);
-            bw.newLine();
+            writer = CorrelationMatrixWriter.open(outputFile, ratings.getNumUsers(), true, minCommonRatedMovies,
+                    binaryOutput, topK);
         } catch (IOException e) {
             System.out.println("Exception at initialization");
             e.printStackTrace();
@@ -332,7 +507,8 @@ public class PearsonsCorrelation {
         }
 
 
-        SerializableListManager listManager = new SerializableListManager(ratings.getNumUsers(), RESIZE_CONSTANT);
+        SerializableListManager listManager = new SerializableListManager(ratings.getNumUsers(), RESIZE_CONSTANT,
+                spillMemory, prefetchDepth, prefetchMemory);
 
 
         //lookUpArrays' functionality is explained in the method correlationFastLookUp
@@ -343,7 +519,15 @@ public class PearsonsCorrelation {
 
 
         ArrayList<Integer> userIDs = ratings.getUserIDs();
-        Map<Integer, List<MovieRating>> usersToRatings = ratings.getUsersToRatings();
+
+        //Common movies of the current user with every later user, see countCommonRatedMovies
+        int[] commonRatedMovies = coCountPrefilter ? new int[userIDs.size()] : null;
+        long pruned = 0;
+
+        //Ratings in the compressed sparse row layout, see MovieHandler
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
 
 
         //Help array to make printing faster
@@ -353,36 +537,44 @@ public class PearsonsCorrelation {
         //For all users
         for (int i = 0; i < userIDs.size(); i++) {
 
-            Integer xID = userIDs.get(i);
-            List<MovieRating> userRatings1 = usersToRatings.get(xID);
+            int xStart = ratingOffsets[i];
+            int xEnd = ratingOffsets[i + 1];
 
             //Ratings 0.5 to 5, definitely not -1
-            for (MovieRating rating : userRatings1) {
-                lookUpArray[rating.getMovieID()] = (float) rating.getRating();
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
             }
 
             //No memory locality problem
             for (int j = 0; j < i; j++) {
                 short val = listManager.getElementFromList(i, j);
-                shortToChar(val);
+                writer.add(val);
             }
 
             /* Cov(X,X) self-correlation is always NaN in my implementation */
-            shortToChar(Short.MAX_VALUE);
+            writer.add(Short.MAX_VALUE);
 
             //free memory
             listManager.deleteList(i);
 
+            if (commonRatedMovies != null) {
+                countCommonRatedMovies(i, i + 1, ratings, commonRatedMovies);
+            }
+
 
             //Start from i+1, don't need to compute self or recompute already computed ratings
             //Since Cor(X,X) = 1, and Cor(X,Y) = Cor(Y,X)
             for (int j = i + 1; j < userIDs.size(); j++) {
-                Integer yID = userIDs.get(j);
-                List<MovieRating> userRatings2 = usersToRatings.get(yID);
-
-                //get the correlation
-                double cor = correlationWithPrecomputedMeansFastLookUp(userRatings2, lookUpArray, lookUpArrayFlag,
-                        minCommonRatedMovies, precomputedMeansInternalIDs[i], precomputedMeansInternalIDs[j]);
+                //get the correlation, pairs with too few common movies are NaN without asking the kernel
+                double cor;
+                if (commonRatedMovies != null && commonRatedMovies[j] < minCommonRatedMovies) {
+                    pruned++;
+                    cor = Float.NaN;
+                } else {
+                    cor = correlationWithPrecomputedMeansFastLookUp(ratingOffsets[j], ratingOffsets[j + 1],
+                            ratingMovieIDs, ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies,
+                            precomputedMeansInternalIDs[i], precomputedMeansInternalIDs[j]);
+                }
 
                 if (Float.isNaN((float) cor)) {
                     listManager.addElementToList(j, Short.MAX_VALUE);
@@ -395,58 +587,876 @@ public class PearsonsCorrelation {
             }
 
             //Set arr to original state
-            for (MovieRating rating : userRatings1) {
-                lookUpArray[rating.getMovieID()] = lookUpArrayFlag;
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = lookUpArrayFlag;
+            }
+            if (commonRatedMovies != null) {
+                Arrays.fill(commonRatedMovies, i + 1, userIDs.size(), 0);
             }
 
             for (int j = 0; j < printHelpCounter; j++) {
                 short val = printHelpArray[j];
-                shortToChar(val);
+                writer.add(val);
             }
 
-            printChars[printCharsCounter - 1] = '\n'; //note -1 here to delete last comma!
-
             try {
-                bw.write(printChars, 0, printCharsCounter);
+                writer.endRow();
             } catch (IOException e) {
                 System.out.println("Exception at write");
                 e.printStackTrace();
                 System.out.println(e);
                 System.exit(-2);
             }
-            printCharsCounter = 0;
             printHelpCounter = 0;
         }
 
+        listManager.close();
+        printPrunedPairs(pruned, ratings.getNumUsers());
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Exception at close");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-3);
+        }
+
+    }
+
+    /**
+     * Multi-threaded version of computeCorrelationsFastLookup and computeCorrelationsWithPrecomputedMeansFastLookup.
+     * <p>
+     * Row i of the upper triangle costs #users-i-1 correlations, so just handing every thread the same number of
+     * rows would give the threads processing the first rows almost all the work. Instead the rows are grouped in
+     * chunks of consecutive rows such that every chunk holds roughly the same number of pairs. Chunks are computed
+     * by a pool of worker threads, each worker has its own lookUpArray (see correlationFastLookUp) as scratch space.
+     * <p>
+     * The calling thread consumes the finished chunks strictly in row order and does the printing and the
+     * bookkeeping of the lower triangle in the SerializableListManager exactly like the single threaded methods,
+     * so the output file is byte identical. Only a bounded window of chunks is in flight at a time to keep the
+     * memory of computed but not yet printed rows in check.
+     *
+     * @param ratings              the ratings
+     * @param outputFile           file the matrix is written to
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param RESIZE_CONSTANT      initial size of the arrays of the SerializableListManager
+     * @param precomputedMeans     whether to use correlationWithPrecomputedMeansFastLookUp
+     * @param numThreads           number of worker threads
+     */
+    private void computeCorrelationsParallel(MovieHandler ratings,
+                                             String outputFile,
+                                             final int minCommonRatedMovies,
+                                             int RESIZE_CONSTANT,
+                                             final boolean precomputedMeans,
+                                             int numThreads) {
+
+        final int numUsers = ratings.getNumUsers();
+
+        //Read only data shared by all workers
+        final MovieHandler sharedRatings = ratings;
+        final float[] precomputedMeansInternalIDs = precomputedMeans ? precomputeUsersMeansInternalIDs(ratings) : null;
+
+        //Every worker gets its own lookUpArray
+        final int maxMovieID = ratings.getMovieIDs().get(ratings.getMovieIDs().size() - 1); //movies are sorted
+        final ThreadLocal<float[]> lookUpArrays = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                float[] lookUpArray = new float[maxMovieID + 1];
+                Arrays.fill(lookUpArray, -1f);
+                return lookUpArray;
+            }
+        };
+
+        //Every worker gets its own counts of common movies, see countCommonRatedMovies
+        final ThreadLocal<int[]> commonRatedMovies = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return coCountPrefilter ? new int[numUsers] : null;
+            }
+        };
+        final LongAdder pruned = new LongAdder();
+
+        //Chunk boundaries, chunk c consists of the rows chunkStarts[c] ... chunkStarts[c+1]-1
+        int[] chunkStarts = balancedRowChunks(numUsers, numThreads * CHUNKS_PER_THREAD);
+
+        //The co-occurrence engine keeps sums for every cell of a chunk, every worker gets blockMemory/numThreads.
+        //The cells of a chunk are indexed with an int, so a chunk can't have more than MAX_ARRAY_SIZE cells.
+        final int blockRows = (int) Math.max(1, Math.min(Math.min(numUsers, MAX_ARRAY_SIZE / numUsers),
+                blockMemory / numThreads / ((long) CooccurrenceSums.BYTES_PER_CELL * numUsers)));
+        if (cooccurrenceEngine) {
+            chunkStarts = limitChunkRows(chunkStarts, blockRows);
+        }
+        final ThreadLocal<CooccurrenceSums> cooccurrenceSums = new ThreadLocal<CooccurrenceSums>() {
+            @Override
+            protected CooccurrenceSums initialValue() {
+                return new CooccurrenceSums(blockRows, numUsers, sharedRatings.getNumMovies());
+            }
+        };
+
+        CorrelationMatrixWriter writer = null;
         try {
-            bw.close();
+            writer = CorrelationMatrixWriter.open(outputFile, numUsers, precomputedMeans, minCommonRatedMovies,
+                    binaryOutput, topK);
+        } catch (IOException e) {
+            System.out.println("Exception at initialization");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-1);
+        }
+
+        SerializableListManager listManager = new SerializableListManager(numUsers, RESIZE_CONSTANT, spillMemory,
+                prefetchDepth, prefetchMemory);
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<short[][]>> inFlight = new ArrayDeque<Future<short[][]>>();
+        int numChunks = chunkStarts.length - 1;
+        int nextChunkToSubmit = 0;
+
+        for (int c = 0; c < numChunks; c++) {
+
+            //Keep the window of submitted chunks full
+            while (nextChunkToSubmit < numChunks && inFlight.size() < numThreads * 2) {
+                final int from = chunkStarts[nextChunkToSubmit];
+                final int to = chunkStarts[nextChunkToSubmit + 1];
+                inFlight.add(pool.submit(new Callable<short[][]>() {
+                    @Override
+                    public short[][] call() {
+                        if (cooccurrenceEngine) {
+                            return computeRowBlockCooccurrence(from, to, sharedRatings, cooccurrenceSums.get(),
+                                    minCommonRatedMovies);
+                        }
+                        return computeRowChunk(from, to, sharedRatings, precomputedMeansInternalIDs,
+                                lookUpArrays.get(), -1f, minCommonRatedMovies, commonRatedMovies.get(), pruned);
+                    }
+                }));
+                nextChunkToSubmit++;
+            }
+
+            short[][] rows = null;
+            try {
+                rows = inFlight.poll().get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("Exception at worker thread");
+                e.printStackTrace();
+                System.out.println(e);
+                System.exit(-6);
+            }
+
+            for (int i = chunkStarts[c]; i < chunkStarts[c + 1]; i++) {
+                short[] row = rows[i - chunkStarts[c]];
+
+                //Print what I already have computed and are stored in the ArrayList
+                for (int j = 0; j < i; j++) {
+                    writer.add(listManager.getElementFromList(i, j));
+                }
+
+                /* Cov(X,X) self-correlation is always NaN in my implementation */
+                writer.add(Short.MAX_VALUE);
+
+                listManager.deleteList(i);
+
+                //row[k] is the correlation of user i with user i+1+k
+                for (int k = 0; k < row.length; k++) {
+                    listManager.addElementToList(i + 1 + k, row[k]);
+                    writer.add(row[k]);
+                }
+
+                try {
+                    writer.endRow();
+                } catch (IOException e) {
+                    System.out.println("Exception at write");
+                    e.printStackTrace();
+                    System.out.println(e);
+                    System.exit(-2);
+                }
+            }
+        }
+        pool.shutdown();
+
+        listManager.close();
+        if (!cooccurrenceEngine) {
+            printPrunedPairs(pruned.sum(), numUsers);
+        }
+
+        try {
+            writer.close();
         } catch (IOException e) {
             System.out.println("Exception at close");
             e.printStackTrace();
             System.out.println(e);
             System.exit(-3);
         }
+    }
+
+    //Number of chunks every worker thread gets on average, more chunks means better load balancing
+    private static final int CHUNKS_PER_THREAD = 64;
+
+    /**
+     * Splits the rows 0 ... numUsers-1 of the upper triangle in chunks of consecutive rows holding roughly the same
+     * number of pairs. Row i holds numUsers-i-1 pairs.
+     *
+     * @param numUsers  number of rows
+     * @param numChunks wanted number of chunks
+     * @return the first row of every chunk, followed by numUsers
+     */
+    static int[] balancedRowChunks(int numUsers, int numChunks) {
+        long totalPairs = (long) numUsers * (numUsers - 1) / 2;
+        long pairsPerChunk = Math.max(1, totalPairs / Math.max(1, numChunks));
+
+        List<Integer> starts = new ArrayList<Integer>();
+        starts.add(0);
+        long pairsInChunk = 0;
+        for (int i = 0; i < numUsers; i++) {
+            pairsInChunk += numUsers - i - 1;
+            if (pairsInChunk >= pairsPerChunk && i + 1 < numUsers) {
+                starts.add(i + 1);
+                pairsInChunk = 0;
+            }
+        }
+        starts.add(numUsers);
+
+        int[] chunkStarts = new int[starts.size()];
+        for (int c = 0; c < chunkStarts.length; c++) {
+            chunkStarts[c] = starts.get(c);
+        }
+        return chunkStarts;
+    }
+
+    /**
+     * Computes the upper triangle rows from ... to-1. Values are stored the same way as in the printHelpArray of
+     * computeCorrelationsFastLookup, i.e. rounded to 4 decimal digits and multiplied by 10000, Short.MAX_VALUE
+     * represents NaN.
+     *
+     * @param from                 first row
+     * @param to                   last row (exclusive)
+     * @param ratings              the ratings
+     * @param means                precomputed means by internal ID, or null to not use precomputed means
+     * @param lookUpArray          a look up array filled with lookUpArrayFlag, owned by the calling thread
+     * @param lookUpArrayFlag      the special lookUpArray flag value
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param commonRatedMovies    zeroed counts for countCommonRatedMovies owned by the calling thread, or null to
+     *                             compute every pair
+     * @param pruned               incremented by the number of pairs skipped by the prefilter
+     * @return the rows, row[i-from][k] is the correlation of user i with user i+1+k
+     */
+    private short[][] computeRowChunk(int from, int to,
+                                      MovieHandler ratings,
+                                      float[] means,
+                                      float[] lookUpArray,
+                                      float lookUpArrayFlag,
+                                      int minCommonRatedMovies,
+                                      int[] commonRatedMovies,
+                                      LongAdder pruned) {
+        int numUsers = ratings.getNumUsers();
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+        short[][] rows = new short[to - from][];
+        long prunedInChunk = 0;
+
+        for (int i = from; i < to; i++) {
+            int xStart = ratingOffsets[i];
+            int xEnd = ratingOffsets[i + 1];
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
+            }
+
+            if (commonRatedMovies != null) {
+                countCommonRatedMovies(i, i + 1, ratings, commonRatedMovies);
+            }
+
+            short[] row = new short[numUsers - i - 1];
+            for (int j = i + 1; j < numUsers; j++) {
+                double cor;
+                if (commonRatedMovies != null && commonRatedMovies[j] < minCommonRatedMovies) {
+                    prunedInChunk++;
+                    cor = Float.NaN;
+                } else if (means == null) {
+                    cor = correlationFastLookUp(ratingOffsets[j], ratingOffsets[j + 1], ratingMovieIDs,
+                            ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies);
+                } else {
+                    cor = correlationWithPrecomputedMeansFastLookUp(ratingOffsets[j], ratingOffsets[j + 1],
+                            ratingMovieIDs, ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies,
+                            means[i], means[j]);
+                }
+
+                if (Float.isNaN((float) cor)) {
+                    row[j - i - 1] = Short.MAX_VALUE;
+                } else {
+                    row[j - i - 1] = (short) Math.round(cor * 10000);
+                }
+            }
+            rows[i - from] = row;
+
+            //Set arr to original state
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = lookUpArrayFlag;
+            }
+            if (commonRatedMovies != null) {
+                Arrays.fill(commonRatedMovies, i + 1, numUsers, 0);
+            }
+        }
+        pruned.add(prunedInChunk);
+        return rows;
+    }
 
+    /**
+     * Computes the correlations of user i with all other users and keeps the best ones in a heap. The values are
+     * computed and encoded exactly like the rows of the matrix (the kernels give the same value for (i,j) and
+     * (j,i)), so the heap ends up with the same neighbors readCorrelationMatrix would read for user i.
+     *
+     * @param i                    the user
+     * @param ratings              the ratings
+     * @param means                precomputed means by internal ID, or null to not use precomputed means
+     * @param lookUpArray          a look up array filled with lookUpArrayFlag, owned by the calling thread
+     * @param lookUpArrayFlag      the special lookUpArray flag value
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param commonRatedMovies    zeroed counts for countCommonRatedMovies owned by the calling thread, or null to
+     *                             compute every pair
+     * @param heap                 an empty heap, receives the neighbors
+     */
+    void computeNeighbors(int i,
+                          MovieHandler ratings,
+                          float[] means,
+                          float[] lookUpArray,
+                          float lookUpArrayFlag,
+                          int minCommonRatedMovies,
+                          int[] commonRatedMovies,
+                          NeighborHeap heap) {
+        int numUsers = ratings.getNumUsers();
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+
+        int xStart = ratingOffsets[i];
+        int xEnd = ratingOffsets[i + 1];
+        for (int k = xStart; k < xEnd; k++) {
+            lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
+        }
+
+        if (commonRatedMovies != null) {
+            countCommonRatedMovies(i, 0, ratings, commonRatedMovies);
+        }
+
+        for (int j = 0; j < numUsers; j++) {
+            /* Cov(X,X) self-correlation is always NaN in my implementation */
+            if (j == i) {
+                continue;
+            }
+            if (commonRatedMovies != null && commonRatedMovies[j] < minCommonRatedMovies) {
+                continue;
+            }
+            double cor;
+            if (means == null) {
+                cor = correlationFastLookUp(ratingOffsets[j], ratingOffsets[j + 1], ratingMovieIDs,
+                        ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies);
+            } else {
+                cor = correlationWithPrecomputedMeansFastLookUp(ratingOffsets[j], ratingOffsets[j + 1],
+                        ratingMovieIDs, ratingValues, lookUpArray, lookUpArrayFlag, minCommonRatedMovies,
+                        means[i], means[j]);
+            }
+            if (!Float.isNaN((float) cor)) {
+                heap.offer(j, (short) Math.round(cor * 10000));
+            }
+        }
+
+        //Set arr to original state
+        for (int k = xStart; k < xEnd; k++) {
+            lookUpArray[ratingMovieIDs[k]] = lookUpArrayFlag;
+        }
+        if (commonRatedMovies != null) {
+            Arrays.fill(commonRatedMovies, 0);
+        }
     }
 
-    private float[] precomputeUsersMeansInternalIDs(MovieHandler ratings) {
-        List<Integer> userIDs = ratings.getUserIDs();
-        Map<Integer, List<MovieRating>> map = ratings.getUsersToRatings();
+    /**
+     * Exact prefilter for the pairs below minCommonRatedMovies. Counts for every user j >= firstUser the movies it
+     * has in common with user i, by walking the movies of user i in the movie to raters inverted index of the
+     * MovieHandler. This only increments an int for the users that really share a movie, while
+     * correlationFastLookUp walks all ratings of user j and accumulates five sums before it finds out the pair is
+     * below the threshold.
+     * <p>
+     * The count is the number of common movies the kernels see (it is only higher if user i rated a movie twice),
+     * so a pair with counts[j] < minCommonRatedMovies is NaN in the kernels as well and can be skipped without
+     * changing the matrix.
+     *
+     * @param i         the user
+     * @param firstUser first user to count, users before it may be counted or not
+     * @param ratings   the ratings
+     * @param counts    zeroed counts, counts[j] receives the number of common movies of user i and user j
+     */
+    static void countCommonRatedMovies(int i, int firstUser, MovieHandler ratings, int[] counts) {
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        int[] raterOffsets = ratings.getMovieRaterOffsets();
+        int[] raterUserIDs = ratings.getMovieRaterUserIDs();
+
+        for (int k = ratingOffsets[i]; k < ratingOffsets[i + 1]; k++) {
+            int movie = ratings.getInternalMovieID(ratingMovieIDs[k]);
+            int ratersEnd = raterOffsets[movie + 1];
+
+            //Raters are sorted, skip to the first one from firstUser on
+            int q = raterOffsets[movie];
+            if (firstUser > 0) {
+                q = Arrays.binarySearch(raterUserIDs, q, ratersEnd, firstUser);
+                q = q < 0 ? -q - 1 : q;
+                while (q > raterOffsets[movie] && raterUserIDs[q - 1] >= firstUser) {
+                    q--;
+                }
+            }
+            for (; q < ratersEnd; q++) {
+                counts[raterUserIDs[q]]++;
+            }
+        }
+    }
 
+    private static void printPrunedPairs(long pruned, int numUsers) {
+        System.out.println("Pruned " + pruned + " of " + (long) numUsers * (numUsers - 1) / 2
+                + " pairs below minCommonRatedMovies without computing them.");
+    }
 
-        //Using internal user IDs !
-        float[] usersPrecomputedMeans = new float[userIDs.size()];
+    //Users per task of computeApproximateNeighbors
+    private static final int LSH_CHUNK_SIZE = 256;
+    private static final long LSH_SEED = 42;
+    //Neighbors a heap of computeApproximateNeighbors has room for before it grows towards topK
+    private static final int LSH_INITIAL_HEAP_CAPACITY = 16;
 
-        for(int i=0; i<userIDs.size(); i++){
-            //Get External ID
-            Integer extID = userIDs.get(i);
-            List<MovieRating> movieRatings = map.get(extID);
+    /**
+     * Approximate version of the top-K matrix: instead of correlating all pairs, MinHash signatures of the sets of
+     * rated movies with LSH banding give candidate neighbors per user (see MinHashLSH), and only the candidates are
+     * correlated, exactly, with the look up array kernel. The best topK candidates of every user are written in the
+     * top-K format of the CorrelationMatrixWriter, which readCorrelationMatrix reads like any other matrix.
+     * <p>
+     * Afterwards the exact neighbor lists of recallSample random users are computed and the recall of the
+     * approximate lists (the fraction of the exact top-K that was found) is printed, to tune bands and rows.
+     *
+     * @param ratings              the ratings
+     * @param outputFile           file the neighbors are written to
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param precomputedMeans     whether to use correlationWithPrecomputedMeansFastLookUp
+     * @param numThreads           number of worker threads
+     * @param bands                number of LSH bands
+     * @param rows                 number of MinHash values per band, the signature is bands * rows long
+     * @param recallSample         number of users the recall is measured on, 0 to skip it
+     */
+    private void computeApproximateNeighbors(MovieHandler ratings,
+                                             String outputFile,
+                                             final int minCommonRatedMovies,
+                                             boolean precomputedMeans,
+                                             int numThreads,
+                                             int bands,
+                                             int rows,
+                                             int recallSample) {
+        long time = -System.currentTimeMillis();
+        final int numUsers = ratings.getNumUsers();
+        final MovieHandler sharedRatings = ratings;
+        final float[] means = precomputedMeans ? precomputeUsersMeansInternalIDs(ratings) : null;
+        MinHashLSH buckets = null;
+        try {
+            buckets = new MinHashLSH(ratings, bands, rows, LSH_SEED, numThreads);
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Exception at worker thread");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-6);
+        }
+        final MinHashLSH lsh = buckets;
+        System.out.println("MinHash signatures and buckets took " + (time + System.currentTimeMillis()) / 1000
+                + " seconds.");
+
+        final int maxMovieID = ratings.getMovieIDs().get(ratings.getMovieIDs().size() - 1); //movies are sorted
+        final ThreadLocal<float[]> lookUpArrays = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                float[] lookUpArray = new float[maxMovieID + 1];
+                Arrays.fill(lookUpArray, -1f);
+                return lookUpArray;
+            }
+        };
+        final ThreadLocal<MinHashLSH.Scratch> lshScratch = new ThreadLocal<MinHashLSH.Scratch>() {
+            @Override
+            protected MinHashLSH.Scratch initialValue() {
+                return new MinHashLSH.Scratch(numUsers);
+            }
+        };
+
+        //The approximate neighbors of the sampled users are kept for the recall, the users are drawn without
+        //replacement with a partial Fisher-Yates shuffle
+        Random random = new Random(LSH_SEED);
+        int[] users = new int[numUsers];
+        for (int u = 0; u < numUsers; u++) {
+            users[u] = u;
+        }
+        Map<Integer, int[]> sampledNeighbors = new HashMap<Integer, int[]>();
+        for (int s = 0; s < Math.min(recallSample, numUsers); s++) {
+            int pick = s + random.nextInt(numUsers - s);
+            int user = users[pick];
+            users[pick] = users[s];
+            users[s] = user;
+            sampledNeighbors.put(user, null);
+        }
 
+        CorrelationMatrixWriter.TopK writer = null;
+        try {
+            writer = CorrelationMatrixWriter.openTopK(outputFile, numUsers, precomputedMeans, minCommonRatedMovies,
+                    topK);
+        } catch (IOException e) {
+            System.out.println("Exception at initialization");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-1);
+        }
+
+        //Every candidate pair is correlated once, by the lowest of the two users, and offered to both of them. The
+        //heaps order on (correlation, id), so the neighbors kept do not depend on the order of the offers. A heap
+        //is only created on the first neighbor of a user and grows with the neighbors it keeps.
+        final AtomicReferenceArray<NeighborHeap> heaps = new AtomicReferenceArray<NeighborHeap>(numUsers);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<Long>> chunks = new ArrayList<Future<Long>>();
+        for (int from = 0; from < numUsers; from += LSH_CHUNK_SIZE) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(numUsers, from + LSH_CHUNK_SIZE);
+            chunks.add(pool.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return computeCandidateNeighbors(chunkFrom, chunkTo, sharedRatings, means, lsh, lshScratch.get(),
+                            lookUpArrays.get(), minCommonRatedMovies, heaps);
+                }
+            }));
+        }
+        long candidatePairs = 0;
+        try {
+            for (Future<Long> chunk : chunks) {
+                candidatePairs += chunk.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Exception at worker thread");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-6);
+        }
+        pool.shutdown();
+
+        int[] ids = new int[topK];
+        short[] values = new short[topK];
+        for (int i = 0; i < numUsers; i++) {
+            NeighborHeap heap = heaps.getAndSet(i, null);
+            int count = heap == null ? 0 : heap.drainSorted(ids, values);
+            for (int k = 0; k < count; k++) {
+                writer.add(ids[k], values[k]);
+            }
+            if (sampledNeighbors.containsKey(i)) {
+                sampledNeighbors.put(i, Arrays.copyOf(ids, count));
+            }
+            try {
+                writer.endRow();
+            } catch (IOException e) {
+                System.out.println("Exception at write");
+                e.printStackTrace();
+                System.out.println(e);
+                System.exit(-2);
+            }
+        }
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Exception at close");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-3);
+        }
+        time += System.currentTimeMillis();
+        System.out.println("Correlated " + candidatePairs + " candidate pairs instead of "
+                + (long) numUsers * (numUsers - 1) / 2 + ", took " + time / 1000 + " seconds.");
+
+        //Recall against the exact neighbor lists of the sampled users
+        if (!sampledNeighbors.isEmpty()) {
+            NeighborHeap heap = new NeighborHeap(topK);
+            int[] exactIds = new int[topK];
+            short[] exactValues = new short[topK];
+            MinHashLSH.Scratch seen = new MinHashLSH.Scratch(numUsers);
+            double sumOfRecalls = 0;
+            int measuredUsers = 0;
+            for (Map.Entry<Integer, int[]> sampled : sampledNeighbors.entrySet()) {
+                computeNeighbors(sampled.getKey(), ratings, means, lookUpArrays.get(), -1f, minCommonRatedMovies,
+                        null, heap);
+                int exact = heap.drainSorted(exactIds, exactValues);
+                if (exact == 0) {
+                    continue;
+                }
+                //Mark the approximate neighbors, then count the exact ones among them
+                int marker = sampled.getKey();
+                for (int id : sampled.getValue()) {
+                    seen.seen[id] = marker;
+                }
+                int found = 0;
+                for (int k = 0; k < exact; k++) {
+                    if (seen.seen[exactIds[k]] == marker) {
+                        found++;
+                    }
+                }
+                sumOfRecalls += (double) found / exact;
+                measuredUsers++;
+            }
+            System.out.println("Recall of the top " + topK + " neighbors on " + measuredUsers + " sampled users: "
+                    + (measuredUsers == 0 ? "n/a" : String.format("%.4f", sumOfRecalls / measuredUsers)));
+        }
+    }
+
+    /**
+     * Correlates the users from ... to-1 with their LSH candidates of a higher ID, and offers every correlation to
+     * the heaps of both users.
+     *
+     * @param heaps the best neighbors of every user, shared by all threads, a heap is locked while offering to it
+     * @return the number of candidate pairs that were correlated
+     */
+    private long computeCandidateNeighbors(int from, int to,
+                                           MovieHandler ratings,
+                                           float[] means,
+                                           MinHashLSH lsh,
+                                           MinHashLSH.Scratch scratch,
+                                           float[] lookUpArray,
+                                           int minCommonRatedMovies,
+                                           AtomicReferenceArray<NeighborHeap> heaps) {
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+        long candidatePairs = 0;
+
+        for (int i = from; i < to; i++) {
+            lsh.candidates(i, scratch);
+
+            int xStart = ratingOffsets[i];
+            int xEnd = ratingOffsets[i + 1];
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
+            }
+            for (int c = 0; c < scratch.numCandidates; c++) {
+                int j = scratch.candidates[c];
+                //The pairs with a lower user are correlated by that user
+                if (j < i) {
+                    continue;
+                }
+                candidatePairs++;
+                double cor;
+                if (means == null) {
+                    cor = correlationFastLookUp(ratingOffsets[j], ratingOffsets[j + 1], ratingMovieIDs,
+                            ratingValues, lookUpArray, -1f, minCommonRatedMovies);
+                } else {
+                    cor = correlationWithPrecomputedMeansFastLookUp(ratingOffsets[j], ratingOffsets[j + 1],
+                            ratingMovieIDs, ratingValues, lookUpArray, -1f, minCommonRatedMovies,
+                            means[i], means[j]);
+                }
+                if (!Float.isNaN((float) cor)) {
+                    short val = (short) Math.round(cor * 10000);
+                    NeighborHeap heap = neighborHeap(heaps, i);
+                    synchronized (heap) {
+                        heap.offer(j, val);
+                    }
+                    heap = neighborHeap(heaps, j);
+                    synchronized (heap) {
+                        heap.offer(i, val);
+                    }
+                }
+            }
+            //Set arr to original state
+            for (int k = xStart; k < xEnd; k++) {
+                lookUpArray[ratingMovieIDs[k]] = -1f;
+            }
+        }
+        return candidatePairs;
+    }
+
+    //The heap of a user in computeCandidateNeighbors, created by the first thread that needs it
+    private NeighborHeap neighborHeap(AtomicReferenceArray<NeighborHeap> heaps, int user) {
+        NeighborHeap heap = heaps.get(user);
+        if (heap == null) {
+            heaps.compareAndSet(user, null, new NeighborHeap(topK, LSH_INITIAL_HEAP_CAPACITY));
+            heap = heaps.get(user);
+        }
+        return heap;
+    }
+
+    //Splits chunks of more than maxRows rows
+    static int[] limitChunkRows(int[] chunkStarts, int maxRows) {
+        List<Integer> starts = new ArrayList<Integer>();
+        for (int c = 0; c + 1 < chunkStarts.length; c++) {
+            for (int start = chunkStarts[c]; start < chunkStarts[c + 1]; start += maxRows) {
+                starts.add(start);
+            }
+        }
+        starts.add(chunkStarts[chunkStarts.length - 1]);
+
+        int[] limited = new int[starts.size()];
+        for (int c = 0; c < limited.length; c++) {
+            limited[c] = starts.get(c);
+        }
+        return limited;
+    }
+
+    //Largest array size that every JVM allows
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Sums of the co-occurrence engine for a block of rows, row r of the block and user j are at cell
+     * r * numUsers + j. Only the cells of the upper triangle are used. Also holds the movies of the block.
+     */
+    private static class CooccurrenceSums {
+        //count (int) + 5 sums (double)
+        static final int BYTES_PER_CELL = 4 + 5 * 8;
+
+        final int numUsers;
+        final int[] count;
+        final double[] sumOfXi;
+        final double[] sumOfYi;
+        final double[] sumOfXiSquared;
+        final double[] sumOfYiSquared;
+        final double[] sumOfXiYi;
+
+        //movieBlock[m] is the first row of the last block that collected movie m, the movies of the current block
+        //are blockMovies[0 ... numBlockMovies-1]
+        final int[] movieBlock;
+        final int[] blockMovies;
+        int numBlockMovies = 0;
+
+        CooccurrenceSums(int rows, int numUsers, int numMovies) {
+            int cells = rows * numUsers;
+            this.numUsers = numUsers;
+            this.count = new int[cells];
+            this.sumOfXi = new double[cells];
+            this.sumOfYi = new double[cells];
+            this.sumOfXiSquared = new double[cells];
+            this.sumOfYiSquared = new double[cells];
+            this.sumOfXiYi = new double[cells];
+            this.movieBlock = new int[numMovies];
+            Arrays.fill(movieBlock, -1);
+            this.blockMovies = new int[numMovies];
+        }
+    }
+
+    /**
+     * Same result as computeRowChunk without precomputed means, but instead of scanning the ratings of every
+     * user j > i, the movie to raters inverted index of the MovieHandler is walked and the sums of
+     * correlationFastLookUp are accumulated only for the users that actually rated the same movies. Pairs without
+     * a common movie cost nothing, so this is much faster on sparse data.
+     * <p>
+     * The rows from ... to-1 are done together: every movie rated in the block is visited once, and for every
+     * rater i of the movie inside the block the sums of i with all later raters j of the movie are accumulated.
+     * So a raters list is walked once per block instead of once per row.
+     * <p>
+     * The sums are the same as the ones of correlationFastLookUp (they only see the common movies in another
+     * order, for ratings that are multiples of 0.5 every partial sum is exact), and the correlation is computed
+     * from them with the same formula, so the matrix is identical.
+     *
+     * @param from                 first row
+     * @param to                   last row (exclusive), at most the number of rows of sums
+     * @param ratings              the ratings
+     * @param sums                 zeroed sums, owned by the calling thread, zeroed again on return
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @return the rows, row[i-from][k] is the correlation of user i with user i+1+k
+     */
+    private short[][] computeRowBlockCooccurrence(int from, int to,
+                                                  MovieHandler ratings,
+                                                  CooccurrenceSums sums,
+                                                  int minCommonRatedMovies) {
+        int numUsers = ratings.getNumUsers();
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        int[] raterOffsets = ratings.getMovieRaterOffsets();
+        int[] raterUserIDs = ratings.getMovieRaterUserIDs();
+        float[] raterValues = ratings.getMovieRaterValues();
+        short[][] rows = new short[to - from][];
+
+        //The movies rated by at least one user of the block
+        sums.numBlockMovies = 0;
+        for (int k = ratingOffsets[from]; k < ratingOffsets[to]; k++) {
+            int movie = ratings.getInternalMovieID(ratingMovieIDs[k]);
+            if (sums.movieBlock[movie] != from) {
+                sums.movieBlock[movie] = from;
+                sums.blockMovies[sums.numBlockMovies++] = movie;
+            }
+        }
+
+        //Accumulate the sums of every user i of the block with every user j > i that rated the same movie
+        for (int b = 0; b < sums.numBlockMovies; b++) {
+            int movie = sums.blockMovies[b];
+            int ratersEnd = raterOffsets[movie + 1];
+
+            //Raters are sorted, the raters of the block are a range starting at the first one >= from
+            int p = Arrays.binarySearch(raterUserIDs, raterOffsets[movie], ratersEnd, from);
+            p = p < 0 ? -p - 1 : p;
+            for (; p < ratersEnd && raterUserIDs[p] < to; p++) {
+                int rowBase = (raterUserIDs[p] - from) * numUsers;
+                double xRating = raterValues[p];
+                for (int q = p + 1; q < ratersEnd; q++) {
+                    int cell = rowBase + raterUserIDs[q];
+                    double yRating = raterValues[q];
+
+                    sums.sumOfXi[cell] += xRating;
+                    sums.sumOfYi[cell] += yRating;
+
+                    sums.sumOfXiSquared[cell] += xRating * xRating;
+                    sums.sumOfYiSquared[cell] += yRating * yRating;
+
+                    sums.sumOfXiYi[cell] += xRating * yRating;
+
+                    sums.count[cell]++;
+                }
+            }
+        }
+
+        //Finalize the rows exactly like correlationFastLookUp and reset the sums
+        for (int i = from; i < to; i++) {
+            int rowBase = (i - from) * numUsers;
+            short[] row = new short[numUsers - i - 1];
+            for (int j = i + 1; j < numUsers; j++) {
+                int cell = rowBase + j;
+                int commonRatedMovies = sums.count[cell];
+                double cor = Float.NaN;
+                if (commonRatedMovies >= minCommonRatedMovies) {
+                    double sumOfXi = sums.sumOfXi[cell];
+                    double sumOfYi = sums.sumOfYi[cell];
+                    double sumOfXiSquared = sums.sumOfXiSquared[cell];
+                    double sumOfYiSquared = sums.sumOfYiSquared[cell];
+                    double numerator = (commonRatedMovies * sums.sumOfXiYi[cell]) - (sumOfXi * sumOfYi);
+                    double denominator = Math.sqrt(commonRatedMovies * sumOfXiSquared - (sumOfXi * sumOfXi)) *
+                            Math.sqrt(commonRatedMovies * sumOfYiSquared - (sumOfYi * sumOfYi));
+                    cor = numerator / denominator;
+                }
+
+                if (Float.isNaN((float) cor)) {
+                    row[j - i - 1] = Short.MAX_VALUE;
+                } else {
+                    row[j - i - 1] = (short) Math.round(cor * 10000);
+                }
+            }
+            rows[i - from] = row;
+
+            Arrays.fill(sums.count, rowBase + i + 1, rowBase + numUsers, 0);
+            Arrays.fill(sums.sumOfXi, rowBase + i + 1, rowBase + numUsers, 0);
+            Arrays.fill(sums.sumOfYi, rowBase + i + 1, rowBase + numUsers, 0);
+            Arrays.fill(sums.sumOfXiSquared, rowBase + i + 1, rowBase + numUsers, 0);
+            Arrays.fill(sums.sumOfYiSquared, rowBase + i + 1, rowBase + numUsers, 0);
+            Arrays.fill(sums.sumOfXiYi, rowBase + i + 1, rowBase + numUsers, 0);
+        }
+        return rows;
+    }
+
+    float[] precomputeUsersMeansInternalIDs(MovieHandler ratings) {
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        float[] ratingValues = ratings.getRatingValues();
+
+        //Using internal user IDs !
+        float[] usersPrecomputedMeans = new float[ratings.getNumUsers()];
+
+        for(int i=0; i<usersPrecomputedMeans.length; i++){
             double sumXis = 0;
-            for (MovieRating mv : movieRatings) {
-                sumXis += mv.getRating();
+            for (int k = ratingOffsets[i]; k < ratingOffsets[i + 1]; k++) {
+                sumXis += ratingValues[k];
             }
-            usersPrecomputedMeans[i] = (float) (sumXis / movieRatings.size());
+            usersPrecomputedMeans[i] = (float) (sumXis / (ratingOffsets[i + 1] - ratingOffsets[i]));
         }
         return usersPrecomputedMeans;
     }
@@ -458,6 +1468,22 @@ public class PearsonsCorrelation {
         boolean preComputedMeans = false;
         int i = 0;
         int INITIAL_SIZE_CONSTANT = 10000;
+        int numThreads = 1;
+        boolean binaryOutput = false;
+        int topK = 0;
+        boolean useSnapshot = false;
+        long spillMemory = 0;
+        int prefetchDepth = 4;
+        long prefetchMemory = 64L << 20;
+        boolean vectorKernel = false;
+        boolean cooccurrenceEngine = false;
+        long blockMemory = 256L << 20;
+        boolean lsh = false;
+        boolean coCountPrefilter = true;
+        boolean itemBased = false;
+        int lshBands = 20;
+        int lshRows = 5;
+        int lshRecallSample = 100;
         while (i < args.length && args[i].startsWith("-")) {
             String arg = args[i];
             if (arg.equals("-trainingFile")) {
@@ -477,15 +1503,150 @@ public class PearsonsCorrelation {
                 }
             } else if (arg.equals("-initialSize")) {
                 INITIAL_SIZE_CONSTANT = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-binaryOutput")) {
+                if (args[i + 1].equals("true")) {
+                    binaryOutput = true;
+                }
+            } else if (arg.equals("-snapshot")) {
+                if (args[i + 1].equals("true")) {
+                    useSnapshot = true;
+                }
+            } else if (arg.equals("-topK")) {
+                topK = Integer.parseInt(args[i + 1]);
+                if (topK < 1 || topK > Short.MAX_VALUE) {
+                    System.out.println("Possible topK values are positive numbers up to " + Short.MAX_VALUE + ".");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-threads")) {
+                numThreads = Integer.parseInt(args[i + 1]);
+                if (numThreads < 1) {
+                    System.out.println("Possible threads values are positive numbers.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-spillMemory")) {
+                spillMemory = parseByteSize(args[i + 1]);
+                if (spillMemory < 1) {
+                    System.out.println("Possible spillMemory values are positive sizes like 512m or 4g.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-engine")) {
+                if (args[i + 1].equals("cooccurrence")) {
+                    cooccurrenceEngine = true;
+                } else if (!args[i + 1].equals("lookup")) {
+                    System.out.println("Possible engine values are lookup and cooccurrence.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-blockMemory")) {
+                blockMemory = parseByteSize(args[i + 1]);
+                if (blockMemory < 1) {
+                    System.out.println("Possible blockMemory values are positive sizes like 256m or 1g.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-lsh")) {
+                if (args[i + 1].equals("true")) {
+                    lsh = true;
+                }
+            } else if (arg.equals("-lshBands")) {
+                lshBands = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-lshRows")) {
+                lshRows = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-lshRecallSample")) {
+                lshRecallSample = Integer.parseInt(args[i + 1]);
+            } else if (arg.equals("-itemBased")) {
+                if (args[i + 1].equals("true")) {
+                    itemBased = true;
+                }
+            } else if (arg.equals("-prefilter")) {
+                if (args[i + 1].equals("false")) {
+                    coCountPrefilter = false;
+                }
+            } else if (arg.equals("-vectorKernel")) {
+                if (args[i + 1].equals("true")) {
+                    vectorKernel = true;
+                }
+            } else if (arg.equals("-prefetchDepth")) {
+                prefetchDepth = Integer.parseInt(args[i + 1]);
+                if (prefetchDepth < 0) {
+                    System.out.println("Possible prefetchDepth values are 0 (no prefetching) or positive numbers.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            } else if (arg.equals("-prefetchMemory")) {
+                prefetchMemory = parseByteSize(args[i + 1]);
+                if (prefetchMemory < 0) {
+                    System.out.println("Possible prefetchMemory values are sizes like 64m or 1g.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
             }
             // ADD ADDITIONAL PARAMETERS //
             i += 2;
         }
 
-        MovieHandler ratings = new MovieHandler(trainingFile);
+        if (vectorKernel && useVectorKernel()) {
+            System.out.println("Using the Vector API kernel for users with at least " + VECTOR_KERNEL_MIN_RATINGS
+                    + " ratings.");
+        }
+
+        MovieHandler ratings = new MovieHandler(trainingFile, useSnapshot);
+        if (itemBased) {
+            //Movie-movie matrix: the same computations on the transposed ratings, every "user" below is a movie
+            ratings = ratings.transpose();
+            System.out.println("Item based: correlations between the " + ratings.getNumUsers() + " movies, "
+                    + "min common raters is given by minCommonRatedMovies.");
+        }
         PearsonsCorrelation matrix = new PearsonsCorrelation(ratings);
+        matrix.binaryOutput = binaryOutput;
+        matrix.topK = topK;
+        matrix.spillMemory = spillMemory;
+        matrix.prefetchDepth = prefetchDepth;
+        matrix.prefetchMemory = prefetchMemory;
+        matrix.blockMemory = blockMemory;
+        matrix.coCountPrefilter = coCountPrefilter;
+        if (lsh) {
+            if (lshBands < 1 || lshRows < 1) {
+                System.out.println("Possible lshBands and lshRows values are positive numbers.");
+                System.out.println("Program exiting...");
+                System.exit(1);
+            }
+            if (topK == 0) {
+                matrix.topK = 1000;
+            }
+            System.out.println("Approximate top " + matrix.topK + " neighbors " + (preComputedMeans ? "WITH" : "WITHOUT")
+                    + " precomputed means, LSH with " + lshBands + " bands of " + lshRows + " rows (signature length "
+                    + lshBands * lshRows + "), using " + numThreads + " threads!");
+            System.out.println("Min common rated movies to define a correlation: " + minCommonRatedMovies);
+            matrix.computeApproximateNeighbors(ratings, outputFile, minCommonRatedMovies, preComputedMeans, numThreads,
+                    lshBands, lshRows, lshRecallSample);
+            return;
+        }
+        if (cooccurrenceEngine && preComputedMeans) {
+            System.out.println("The co-occurrence engine does not support precomputed means, using the lookup engine.");
+        } else if (cooccurrenceEngine) {
+            matrix.cooccurrenceEngine = true;
+            System.out.println("Correlations WITHOUT precomputed means, using the co-occurrence engine with "
+                    + numThreads + " threads!");
+            System.out.println("Min common rated movies to define a correlation: " + minCommonRatedMovies);
+            matrix.computeCorrelationsParallel(ratings, outputFile, minCommonRatedMovies, INITIAL_SIZE_CONSTANT,
+                    false, numThreads);
+            return;
+        }
+        if (topK > 0) {
+            System.out.println("Only the top " + topK + " neighbors of every user are written.");
+        }
 
-        if (preComputedMeans) {
+        if (numThreads > 1) {
+            System.out.println("Correlations " + (preComputedMeans ? "WITH" : "WITHOUT") + " precomputed means, using "
+                    + numThreads + " threads!");
+            System.out.println("Min common rated movies to define a correlation: " + minCommonRatedMovies);
+            matrix.computeCorrelationsParallel(ratings, outputFile, minCommonRatedMovies, INITIAL_SIZE_CONSTANT,
+                    preComputedMeans, numThreads);
+        } else if (preComputedMeans) {
             System.out.println("Correlations WITH precomputed means!");
             System.out.println("Min common rated movies to define a correlation: " + minCommonRatedMovies);
             matrix.computeCorrelationsWithPrecomputedMeansFastLookup(ratings, outputFile, minCommonRatedMovies, INITIAL_SIZE_CONSTANT);
@@ -498,6 +1659,25 @@ public class PearsonsCorrelation {
     }
 
 
+    //Parses a size like 4g, 512m, 64k or a plain number of bytes, returns -1 if it is not a size
+    static long parseByteSize(String size) {
+        long multiplier = 1;
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        if (unit == 'k') {
+            multiplier = 1L << 10;
+        } else if (unit == 'm') {
+            multiplier = 1L << 20;
+        } else if (unit == 'g') {
+            multiplier = 1L << 30;
+        }
+        try {
+            return Long.parseLong(multiplier == 1 ? size : size.substring(0, size.length() - 1)) * multiplier;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
     /**
      * Create an empty PearsonsCorrelation instance with default parameters.
      */
@@ -530,8 +1710,16 @@ public class PearsonsCorrelation {
          */
         this.ratingsDemonstration = ratings;
         //movieIds are sorted!
-        int maxMovieID = ratingsDemonstration.getMovieIDs().get(ratingsDemonstration.getMovieIDs().size() - 1);
-        this.lookUpArrayDemonstration = new float[maxMovieID + 1]; //+1 cause I don't want to do -1 all the time
+        final int maxMovieID = ratingsDemonstration.getMovieIDs().get(ratingsDemonstration.getMovieIDs().size() - 1);
+        //One per thread, so correlation() and get() can be called from several threads at once
+        this.lookUpArrayDemonstration = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                float[] lookUpArray = new float[maxMovieID + 1]; //+1 cause I don't want to do -1 all the time
+                Arrays.fill(lookUpArray, lookUpArrayDemonstrationFlag);
+                return lookUpArray;
+            }
+        };
 
     }
 
@@ -549,61 +1737,53 @@ public class PearsonsCorrelation {
     }
 
     /**
-     * Following methods and class members are used in the printing operations
+     * Following class members are used in the printing operations, the printing itself happens in the
+     * CorrelationMatrixWriter
      */
 
-    //Used in combination with method shortToChar, just used to make the printing to disk a bit faster
-    private final char[] printChars = new char[8 * 70000]; //Maximum should actually be 8 * sizeOfUsers but dont want to declare elsewhere
-    private int printCharsCounter = 0;
+    //Write the binary instead of the text matrix format, see CorrelationMatrixWriter
+    private boolean binaryOutput = false;
 
-    //Prepares text for printing it to disk
-    //Makes use of a few global variables to make it fast
-    private void shortToChar(short val) {
+    //If larger than 0 only the topK best neighbors of every user are written, see CorrelationMatrixWriter
+    private int topK = 0;
 
-        if (val == Short.MAX_VALUE) {
-            printChars[printCharsCounter++] = 'N';
-            printChars[printCharsCounter++] = 'a';
-            printChars[printCharsCounter++] = 'N';
-            printChars[printCharsCounter++] = ',';
-            return;
-        }
+    //Bytes the SerializableListManager may keep in memory before spilling to disk. 0 keeps the old behaviour:
+    //lists only grow into memory freed by deleteList
+    private long spillMemory = 0;
 
-        if (val < 0) {
-            val = (short) -val;
-            printChars[printCharsCounter++] = '-';
-        }
+    //Spilled lists of the next prefetchDepth rows are read in the background, using at most prefetchMemory bytes
+    private int prefetchDepth = 4;
+    private long prefetchMemory = 64L << 20;
 
-        if (val == 10000) {
-            printChars[printCharsCounter++] = '1';
-            printChars[printCharsCounter++] = '.';
-            printChars[printCharsCounter++] = '0';
-            printChars[printCharsCounter++] = '0';
-            printChars[printCharsCounter++] = '0';
-            printChars[printCharsCounter++] = '0';
-            printChars[printCharsCounter++] = ',';
-        } else {
-            printChars[printCharsCounter++] = '.';
-            printChars[printCharsCounter + 3] = (char) ('0' + (val % 10));
-            val /= 10;
-            printChars[printCharsCounter + 2] = (char) ('0' + (val % 10));
-            val /= 10;
-            printChars[printCharsCounter + 1] = (char) ('0' + (val % 10));
-            val /= 10;
-            printChars[printCharsCounter] = (char) ('0' + (val % 10));
-            printChars[printCharsCounter + 4] = ',';
-            printCharsCounter += 5;
-        }
-    }
+    //Compute with computeRowBlockCooccurrence instead of the look up array kernel, using at most blockMemory bytes
+    //for the sums of the blocks in flight
+    private boolean cooccurrenceEngine = false;
+    private long blockMemory = 256L << 20;
+
+    //Skip the pairs below minCommonRatedMovies with countCommonRatedMovies before asking the kernel
+    private boolean coCountPrefilter = true;
 
 
     /**
      * Following methods support the reading
      */
 
+    //The kNN neighbors of every user, packed in primitive arrays, see NeighborTable
+    NeighborTable neighborTable;
+
+    //Lazily built list view of neighborTable, see getCorrelationsOfUsers
     List<Neighbor>[] correlationsOfUsers;
 
+    //Allocate the neighbor table outside of the Java heap
+    private boolean offHeapNeighbors = false;
+
     public PearsonsCorrelation(MovieHandler ratings, String filename, int kNN) {
+        this(ratings, filename, kNN, false);
+    }
+
+    public PearsonsCorrelation(MovieHandler ratings, String filename, int kNN, boolean offHeapNeighbors) {
         // FILL IN HERE //
+        this.offHeapNeighbors = offHeapNeighbors;
         readCorrelationMatrix(filename, kNN);
     }
 
@@ -616,81 +1796,367 @@ public class PearsonsCorrelation {
     public void readCorrelationMatrix(String filename, int kNN) {
         // FILL IN HERE //
 
-        //parseOneCorrelationLine(String line, int numOfUsers) is around
+        //The format is detected from the first bytes of the file, see CorrelationMatrixWriter
+        int magic = readMagic(filename);
+        if (magic == CorrelationMatrixWriter.BINARY_MAGIC) {
+            readBinaryCorrelationMatrix(filename, kNN);
+            return;
+        } else if (magic == CorrelationMatrixWriter.TOPK_MAGIC) {
+            readTopKNeighbors(filename, kNN);
+            return;
+        }
+
+        //parseOneCorrelationLine is around
         //7 times faster than line.split(",") followed by ParseFloat on every element
         //Remember users start from number 1!
         //Remember some user IDs do not exist (#of users = ~69900 , max user id # = ~71.000)
 
-        String line = null;
-        int numOfUsers;
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            line = br.readLine();
-            numOfUsers = Integer.parseInt(line);
-            br.readLine();
-
-            this.correlationsOfUsers = new ArrayList[numOfUsers];
+        //The file is memory mapped, first all newlines are found, then the rows are parsed in parallel straight
+        //from the mapped bytes, without creating a String per row
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final long[] newlines = findNewlines(fc, pool);
+
+            //Line 0 holds the number of users, line 1 the parameters and line 2+i the row of user i
+            ByteBuffer firstLine = fc.map(FileChannel.MapMode.READ_ONLY, 0, newlines[0]);
+            int numOfUsers = 0;
+            for (int k = 0; k < newlines[0]; k++) {
+                if (firstLine.get(k) >= '0' && firstLine.get(k) <= '9') {
+                    numOfUsers = numOfUsers * 10 + (firstLine.get(k) - '0');
+                }
+            }
 
-            for (int i = 0; i < numOfUsers; i++) {
-                line = br.readLine();
-                this.correlationsOfUsers[i] = parseOneCorrelationLine(line, kNN);
+            //Never more neighbors than users
+            final int kNNs = Math.min(kNN, numOfUsers);
+            final NeighborTable table = new NeighborTable(numOfUsers, kNNs, offHeapNeighbors);
+
+            //Parse groups of consecutive rows of about READ_CHUNK_SIZE bytes, every group is mapped once
+            List<Future<?>> parsed = new ArrayList<Future<?>>();
+            int firstRow = 0;
+            while (firstRow < numOfUsers) {
+                final int from = firstRow;
+                final long regionStart = newlines[from + 1] + 1;
+                int to = from + 1;
+                while (to < numOfUsers && lineEnd(newlines, to + 2, fc.size()) - regionStart < READ_CHUNK_SIZE) {
+                    to++;
+                }
+                final int until = to;
+                final long regionEnd = lineEnd(newlines, until + 1, fc.size());
+                parsed.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer region = fc.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+                        NeighborHeap heap = new NeighborHeap(kNNs);
+                        int[] ids = new int[kNNs];
+                        short[] values = new short[kNNs];
+                        for (int i = from; i < until; i++) {
+                            int start = (int) (newlines[i + 1] + 1 - regionStart);
+                            int end = (int) (lineEnd(newlines, i + 2, regionEnd) - regionStart);
+                            parseOneCorrelationLine(region, start, end, heap);
+                            table.setNeighbors(i, ids, values, heap.drainSorted(ids, values));
+                        }
+                        return null;
+                    }
+                }));
+                firstRow = until;
+            }
+            for (Future<?> future : parsed) {
+                future.get();
             }
+            table.pack();
+            setNeighborTable(table);
 
-        } catch (IOException e) {
+        } catch (IOException | InterruptedException | ExecutionException e) {
             e.printStackTrace();
+        } finally {
+            pool.shutdown();
         }
 
     }
 
+    //Maximum number of bytes mapped at once by readCorrelationMatrix
+    private static final long READ_CHUNK_SIZE = 64L << 20;
+
+    //End (exclusive) of line number line, i.e. the position of its newline or the end of the file for the last line
+    private static long lineEnd(long[] newlines, int line, long fileSize) {
+        return line < newlines.length ? newlines[line] : fileSize;
+    }
+
+    /**
+     * Finds the positions of all newlines of the file, the file is scanned in parallel in mapped parts.
+     *
+     * @return the positions of the newlines, sorted
+     */
+    private static long[] findNewlines(final FileChannel fc, ExecutorService pool)
+            throws IOException, InterruptedException, ExecutionException {
+        long fileSize = fc.size();
+        List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+        for (long partStart = 0; partStart < fileSize; partStart += READ_CHUNK_SIZE) {
+            final long start = partStart;
+            final int length = (int) Math.min(READ_CHUNK_SIZE, fileSize - partStart);
+            parts.add(pool.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException {
+                    ByteBuffer part = fc.map(FileChannel.MapMode.READ_ONLY, start, length);
+                    long[] found = new long[16];
+                    int numFound = 0;
+                    for (int k = 0; k < length; k++) {
+                        if (part.get(k) == '\n') {
+                            if (numFound == found.length) {
+                                found = Arrays.copyOf(found, 2 * numFound);
+                            }
+                            found[numFound++] = start + k;
+                        }
+                    }
+                    return Arrays.copyOf(found, numFound);
+                }
+            }));
+        }
+
+        long[] newlines = new long[0];
+        for (Future<long[]> part : parts) {
+            long[] found = part.get();
+            int previous = newlines.length;
+            newlines = Arrays.copyOf(newlines, previous + found.length);
+            System.arraycopy(found, 0, newlines, previous, found.length);
+        }
+        return newlines;
+    }
+
     //Parses one line of the input file
     private List<Neighbor> parseOneCorrelationLine(String line, int kNN) {
-        List<Neighbor> list = new ArrayList<Neighbor>();
+        //A line holds at most one value per 4 characters
+        int capacity = Math.min(kNN, line.length() / 4 + 1);
+        NeighborHeap heap = new NeighborHeap(capacity);
+        parseOneCorrelationLine(ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)), 0, line.length(), heap);
+        return drainNeighbors(heap, new int[capacity], new short[capacity]);
+    }
 
-        int lineIndex = 0;
+    /**
+     * Parses one line of the input file, stored in bytes[start ... end-1], into a bounded heap.
+     * <p>
+     * Every value is parsed into the short encoding of the matrix (correlation * 10000) and offered to the heap,
+     * so only the best kNN neighbors are ever kept. Nothing is allocated per value and no full sort is needed,
+     * the heap keeps the order of the stable sort by absolute correlation that was used before.
+     *
+     * @param bytes the bytes, only read with absolute gets
+     * @param start position of the first character of the line
+     * @param end   position of the newline (or the end of the file)
+     * @param heap  an empty heap with capacity kNN, receives the neighbors
+     */
+    static void parseOneCorrelationLine(ByteBuffer bytes, int start, int end, NeighborHeap heap) {
+        int lineIndex = start;
         int currentUserIDCorrelation = 0;
-        while (lineIndex < line.length()) {
-            if (line.charAt(lineIndex) == 'N') {
+        while (lineIndex < end) {
+            if (bytes.get(lineIndex) == 'N') {
                 lineIndex += 4;
                 currentUserIDCorrelation++;
-            } else if (line.charAt(lineIndex) == '.') {
-                double cor = (((line.charAt(lineIndex + 1) - '0') * 0.1000) +
-                        ((line.charAt(lineIndex + 2) - '0') * 0.0100) +
-                        ((line.charAt(lineIndex + 3) - '0') * 0.0010) +
-                        ((line.charAt(lineIndex + 4) - '0') * 0.0001));
+            } else if (bytes.get(lineIndex) == '.') {
+                int cor = ((bytes.get(lineIndex + 1) - '0') * 1000) +
+                        ((bytes.get(lineIndex + 2) - '0') * 100) +
+                        ((bytes.get(lineIndex + 3) - '0') * 10) +
+                        (bytes.get(lineIndex + 4) - '0');
                 lineIndex += 6;
-                list.add(new Neighbor(currentUserIDCorrelation ,cor));
+                heap.offer(currentUserIDCorrelation, (short) cor);
                 currentUserIDCorrelation++;
-            } else if (line.charAt(lineIndex) == '-') {
-                if (line.charAt(lineIndex + 1) == '.') {
-                    double cor = -(((line.charAt(lineIndex + 2) - '0') * 0.1) +
-                            ((line.charAt(lineIndex + 3) - '0') * 0.01) +
-                            ((line.charAt(lineIndex + 4) - '0') * 0.001) +
-                            ((line.charAt(lineIndex + 5) - '0') * 0.0001));
+            } else if (bytes.get(lineIndex) == '-') {
+                if (bytes.get(lineIndex + 1) == '.') {
+                    int cor = -(((bytes.get(lineIndex + 2) - '0') * 1000) +
+                            ((bytes.get(lineIndex + 3) - '0') * 100) +
+                            ((bytes.get(lineIndex + 4) - '0') * 10) +
+                            (bytes.get(lineIndex + 5) - '0'));
                     lineIndex += 7;
-                    list.add(new Neighbor(currentUserIDCorrelation ,cor));
+                    heap.offer(currentUserIDCorrelation, (short) cor);
                     currentUserIDCorrelation++;
                 } else { //Then it is -1
-                    double cor = -1.0000f;
                     lineIndex += 8;
-                    list.add(new Neighbor(currentUserIDCorrelation ,cor));
+                    heap.offer(currentUserIDCorrelation, (short) -10000);
                     currentUserIDCorrelation++;
                 }
             } else { //Then it is equal to 1.0000
-                double cor = 1.0000f;
                 lineIndex += 7;
-                list.add(new Neighbor(currentUserIDCorrelation ,cor));
+                heap.offer(currentUserIDCorrelation, (short) 10000);
                 currentUserIDCorrelation++;
             }
         }
+    }
+
+    /**
+     * Empties a heap into a neighbor list, best neighbor first. The values are decoded with shortToCorrelation,
+     * which gives the same doubles as parsing the characters.
+     *
+     * @param heap   the heap
+     * @param ids    scratch space, at least heap.size() long
+     * @param values scratch space, at least heap.size() long
+     * @return the neighbors
+     */
+    private static List<Neighbor> drainNeighbors(NeighborHeap heap, int[] ids, short[] values) {
+        int count = heap.drainSorted(ids, values);
+        List<Neighbor> list = new ArrayList<Neighbor>(count);
+        for (int k = 0; k < count; k++) {
+            list.add(new Neighbor(ids[k], shortToCorrelation(values[k])));
+        }
+        return list;
+    }
+
+    //Returns the first 4 bytes of the file, used to detect the binary formats
+    private static int readMagic(String filename) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+            return in.readInt();
+        } catch (IOException e) {
+            //Too short to be a binary file, let the text reader deal with it
+            return 0;
+        }
+    }
+
+    /**
+     * Reads a top-K neighbor file written by CorrelationMatrixWriter. The neighbors are stored best first,
+     * so the first kNN of every user are kept.
+     *
+     * @param filename Path to the input file.
+     * @param kNN number of NN to be considered
+     */
+    private void readTopKNeighbors(String filename, int kNN) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            in.readInt(); //magic
+            short version = in.readShort();
+            if (version != CorrelationMatrixWriter.TOPK_VERSION) {
+                throw new IOException("Unsupported top-K neighbor file version " + version);
+            }
+            in.readByte(); //precomputedMeans, not needed for reading
+            in.readByte(); //reserved
+            int numOfUsers = in.readInt();
+            in.readInt(); //minCommonRatedMovies, not needed for reading
+            int topK = in.readInt();
+            if (kNN > topK) {
+                System.out.println("Warning: kNN=" + kNN + " but the file only holds the top " + topK + " neighbors.");
+            }
+
+            int capacity = Math.min(kNN, topK);
+            NeighborTable table = new NeighborTable(numOfUsers, capacity, offHeapNeighbors);
+            int[] ids = new int[capacity];
+            short[] values = new short[capacity];
+            for (int i = 0; i < numOfUsers; i++) {
+                int count = in.readShort();
+                for (int k = 0; k < count; k++) {
+                    int id = in.readInt();
+                    short val = in.readShort();
+                    if (k < capacity) {
+                        ids[k] = id;
+                        values[k] = val;
+                    }
+                }
+                table.setNeighbors(i, ids, values, Math.min(count, capacity));
+            }
+            table.pack();
+            setNeighborTable(table);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a correlation matrix written in the binary format of CorrelationMatrixWriter.
+     * The file is memory mapped in windows of whole rows (a single mapping is limited to 2GB) and every row is
+     * decoded straight from the mapped shorts into a bounded heap, no Strings are created.
+     *
+     * @param filename Path to the input file.
+     * @param kNN number of NN to be considered
+     */
+    private void readBinaryCorrelationMatrix(String filename, int kNN) {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            FileChannel fc = raf.getChannel();
+
+            ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, CorrelationMatrixWriter.BINARY_HEADER_SIZE);
+            header.getInt(); //magic
+            short version = header.getShort();
+            if (version != CorrelationMatrixWriter.BINARY_VERSION) {
+                throw new IOException("Unsupported binary correlation matrix version " + version);
+            }
+            header.get(); //precomputedMeans, not needed for reading
+            header.get(); //reserved
+            int numOfUsers = header.getInt();
+            header.getInt(); //minCommonRatedMovies, not needed for reading
+
+            long rowBytes = 2L * numOfUsers;
+            int rowsPerWindow = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+            short[] row = new short[numOfUsers];
+            int capacity = Math.min(kNN, numOfUsers);
+            NeighborHeap heap = new NeighborHeap(capacity);
+            int[] ids = new int[capacity];
+            short[] values = new short[capacity];
+            NeighborTable table = new NeighborTable(numOfUsers, capacity, offHeapNeighbors);
+
+            for (int windowStart = 0; windowStart < numOfUsers; windowStart += rowsPerWindow) {
+                int windowRows = Math.min(rowsPerWindow, numOfUsers - windowStart);
+                ShortBuffer window = fc.map(FileChannel.MapMode.READ_ONLY,
+                        CorrelationMatrixWriter.BINARY_HEADER_SIZE + windowStart * rowBytes,
+                        windowRows * rowBytes).asShortBuffer();
+
+                for (int i = windowStart; i < windowStart + windowRows; i++) {
+                    window.get(row);
+                    for (int j = 0; j < numOfUsers; j++) {
+                        if (row[j] != Short.MAX_VALUE) {
+                            heap.offer(j, row[j]);
+                        }
+                    }
+                    table.setNeighbors(i, ids, values, heap.drainSorted(ids, values));
+                }
+            }
+            table.pack();
+            setNeighborTable(table);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Decodes a stored correlation (rounded to 4 decimal digits and multiplied by 10000).
+     * The digits are combined as digit * 0.1 + digit * 0.01 + ..., exactly like the characters of the text format
+     * used to be combined, so every format gives identical doubles.
+     *
+     * @param val the encoded correlation, not Short.MAX_VALUE
+     * @return the correlation
+     */
+    static double shortToCorrelation(short val) {
+        if (val == 10000) {
+            return 1.0000f;
+        } else if (val == -10000) {
+            return -1.0000f;
+        }
+        int abs = Math.abs(val);
+        double cor = (((abs / 1000) * 0.1000) +
+                ((abs / 100 % 10) * 0.0100) +
+                ((abs / 10 % 10) * 0.0010) +
+                ((abs % 10) * 0.0001));
+        return val < 0 ? -cor : cor;
+    }
+
 
-        //Sort the array list from highest to lowest
-        Collections.sort(list);
-        //Return the first kNNs
-        List<Neighbor> listToReturn = new ArrayList<Neighbor>(list.subList(0, Math.min(kNN, list.size())));
-        return listToReturn;
+    public NeighborTable getNeighborTable() {
+        return neighborTable;
     }
 
+    private synchronized void setNeighborTable(NeighborTable table) {
+        this.neighborTable = table;
+        this.correlationsOfUsers = null;
+    }
 
-    public List<Neighbor>[] getCorrelationsOfUsers() {
+    /**
+     * The neighbors as one list per user. The lists are only built on the first call, the prediction code
+     * reads the NeighborTable directly.
+     */
+    public synchronized List<Neighbor>[] getCorrelationsOfUsers() {
+        if (correlationsOfUsers == null && neighborTable != null) {
+            List<Neighbor>[] lists = new ArrayList[neighborTable.getNumUsers()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = neighborTable.toNeighborList(i);
+            }
+            correlationsOfUsers = lists;
+        }
         return correlationsOfUsers;
     }
 
@@ -701,8 +2167,9 @@ public class PearsonsCorrelation {
 
     //this should actually be equal to the max movie num id, here I initialize it as 15.000 cause I don't want to
     //the following code to be connected in any way with the rest of the code
-    private float[] lookUpArrayDemonstration;
-    private float lookUpArrayDemonstrationFlag = -1f;
+    //See SimilarityService for many pairs from many threads, it caches the results
+    private ThreadLocal<float[]> lookUpArrayDemonstration;
+    private final float lookUpArrayDemonstrationFlag = -1f;
     private MovieHandler ratingsDemonstration;
 
     public double correlation(List<MovieRating> xRatings, List<MovieRating> yRatings) {
@@ -722,9 +2189,11 @@ public class PearsonsCorrelation {
             yRatings = temp;
         }
 
+        float[] lookUpArray = this.lookUpArrayDemonstration.get();
+
         //Ratings 0.5 to 5, definitely not -1
         for (MovieRating rating : xRatings) {
-            this.lookUpArrayDemonstration[rating.getMovieID()] = (float) rating.getRating();
+            lookUpArray[rating.getMovieID()] = (float) rating.getRating();
         }
 
         //I need E[X], E[Y], E[XY], E[X^2], E[Y^2]
@@ -739,7 +2208,7 @@ public class PearsonsCorrelation {
         //Now of all the elements in the other list check if they have common ratings
         for (MovieRating rating : yRatings) {
 
-            double xRating = this.lookUpArrayDemonstration[rating.getMovieID()];
+            double xRating = lookUpArray[rating.getMovieID()];
             //Common element , do stuff!
             if (xRating != this.lookUpArrayDemonstrationFlag) {
 
@@ -759,7 +2228,7 @@ public class PearsonsCorrelation {
 
         //Set arr to original state
         for (MovieRating rating : xRatings) {
-            this.lookUpArrayDemonstration[rating.getMovieID()] = this.lookUpArrayDemonstrationFlag;
+            lookUpArray[rating.getMovieID()] = this.lookUpArrayDemonstrationFlag;
         }
 
         //https://en.wikipedia.org/wiki/Pearson_correlation_coefficient
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Parses MovieLens rating lines straight from bytes, without creating Strings or boxing anything.
+ * Lines look like user::movie::rating[::timestamp] or user\tmovie\trating[\ttimestamp], the same layouts
+ * that line.split("::|\t") handles. A line that doesn't look like that (a header, a byte order mark, other separators)
+ * throws a NumberFormatException with the offset of the offending byte.
+ * <p>
+ * Usage:
+ *      RatingLineParser parser = new RatingLineParser(bytes, start, end);
+ *      while (parser.next()) {
+ *          ... parser.userID, parser.movieID, parser.rating ...
+ *      }
+ */
+class RatingLineParser {
+
+    private final ByteBuffer bytes;
+    private int position;
+    private final int end;
+    //Offset in the file of bytes[0], only for the error messages
+    private final long fileOffset;
+
+    //Fields of the last parsed line
+    int userID;
+    int movieID;
+    double rating;
+
+    /**
+     * @param bytes the bytes to parse, only read with absolute gets
+     * @param start first byte of the first line
+     * @param end   end (exclusive) of the last line
+     */
+    RatingLineParser(ByteBuffer bytes, int start, int end) {
+        this(bytes, start, end, 0);
+    }
+
+    /**
+     * @param bytes      the bytes to parse, only read with absolute gets
+     * @param start      first byte of the first line
+     * @param end        end (exclusive) of the last line
+     * @param fileOffset offset in the file of bytes[0], used in the error messages
+     */
+    RatingLineParser(ByteBuffer bytes, int start, int end, long fileOffset) {
+        this.bytes = bytes;
+        this.position = start;
+        this.end = end;
+        this.fileOffset = fileOffset;
+    }
+
+    /**
+     * Parses the next line.
+     *
+     * @return false if there are no more lines
+     * @throws NumberFormatException if the line is malformed
+     */
+    boolean next() {
+        //Skip empty lines
+        while (position < end && (bytes.get(position) == '\n' || bytes.get(position) == '\r')) {
+            position++;
+        }
+        if (position >= end) {
+            return false;
+        }
+
+        userID = parseInt();
+        skipSeparator();
+        movieID = parseInt();
+        skipSeparator();
+
+        //mantissa / 10^decimals, both exact in a double, so the division rounds the same as Double.parseDouble
+        int digits = 0;
+        long mantissa = 0;
+        int decimals = 0;
+        boolean fraction = false;
+        while (position < end) {
+            byte b = bytes.get(position);
+            if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction) {
+                    decimals++;
+                }
+            } else {
+                break;
+            }
+            position++;
+        }
+        if (digits == 0) {
+            throw malformed("a rating");
+        }
+        rating = mantissa / Math.pow(10, decimals);
+        if (position < end) {
+            byte b = bytes.get(position);
+            if (b != '\n' && b != '\r' && b != ':' && b != '\t') {
+                throw malformed("the end of the rating");
+            }
+        }
+
+        //Skip the rest of the line (timestamp)
+        while (position < end && bytes.get(position) != '\n') {
+            position++;
+        }
+        return true;
+    }
+
+    private int parseInt() {
+        int start = position;
+        int value = 0;
+        while (position < end) {
+            byte b = bytes.get(position);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            position++;
+        }
+        if (position == start) {
+            throw malformed("a number");
+        }
+        return value;
+    }
+
+    //Skips a :: or a tab
+    private void skipSeparator() {
+        if (position < end && bytes.get(position) == '\t') {
+            position++;
+        } else if (position + 1 < end && bytes.get(position) == ':' && bytes.get(position + 1) == ':') {
+            position += 2;
+        } else {
+            throw malformed("a :: or tab separator");
+        }
+    }
+
+    private NumberFormatException malformed(String expected) {
+        return new NumberFormatException("Malformed rating line, expected " + expected + " at byte "
+                + (fileOffset + position));
+    }
+
+}
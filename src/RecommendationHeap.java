@@ -0,0 +1,107 @@
+/**
+ * Bounded min-heap that keeps the n movies with the highest predicted rating, using primitive arrays only.
+ * Same idea as the NeighborHeap: highest rating first, ties broken by the lowest movie id, the root of the heap is
+ * the movie that would be dropped first.
+ */
+class RecommendationHeap {
+
+    private final int[] movieIDs;
+    private final double[] ratings;
+    private int size = 0;
+
+    RecommendationHeap(int n) {
+        this.movieIDs = new int[n];
+        this.ratings = new double[n];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Offers a movie, it is kept if it is among the n best seen so far.
+     *
+     * @param movieID id of the movie
+     * @param rating  predicted rating
+     */
+    void offer(int movieID, double rating) {
+        if (size < movieIDs.length) {
+            movieIDs[size] = movieID;
+            ratings[size] = rating;
+            siftUp(size++);
+        } else if (movieIDs.length > 0 && worse(movieIDs[0], ratings[0], movieID, rating)) {
+            movieIDs[0] = movieID;
+            ratings[0] = rating;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empties the heap into the given arrays, best movie first.
+     *
+     * @param outMovieIDs receives the movie ids, at least size() long
+     * @param outRatings  receives the predicted ratings, at least size() long
+     * @return the number of movies written
+     */
+    int drainSorted(int[] outMovieIDs, double[] outRatings) {
+        int count = size;
+        //Popping the root gives the worst movie first, so fill from the back
+        while (size > 0) {
+            outMovieIDs[size - 1] = movieIDs[0];
+            outRatings[size - 1] = ratings[0];
+            size--;
+            movieIDs[0] = movieIDs[size];
+            ratings[0] = ratings[size];
+            siftDown(0);
+        }
+        return count;
+    }
+
+    //true if movie a should be dropped before movie b
+    private static boolean worse(int movieA, double ratingA, int movieB, double ratingB) {
+        if (ratingA != ratingB) {
+            return ratingA < ratingB;
+        }
+        return movieA > movieB;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!worse(movieIDs[index], ratings[index], movieIDs[parent], ratings[parent])) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < size && worse(movieIDs[right], ratings[right], movieIDs[left], ratings[left])) {
+                worst = right;
+            }
+            if (!worse(movieIDs[worst], ratings[worst], movieIDs[index], ratings[index])) {
+                return;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int movieID = movieIDs[a];
+        movieIDs[a] = movieIDs[b];
+        movieIDs[b] = movieID;
+        double rating = ratings[a];
+        ratings[a] = ratings[b];
+        ratings[b] = rating;
+    }
+
+}
@@ -0,0 +1,875 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Predicts ratings from the ratings of a MovieHandler and a source of neighbors: the neighbor table read from a
+ * correlation matrix, or the neighbors computed on demand by OnlineNeighbors. Built once and then asked for as
+ * many predictions as needed, from any number of threads at once. The MovieRunner uses one to evaluate a test set.
+ * <p>
+ * User based (the neighbors are users, see predictRating) or item based (the neighbors are movies from a
+ * movie-movie matrix, see predictRatingItemBased).
+ * <p>
+ * Usage:
+ *      Recommender recommender = new Recommender(ratings, new PearsonsCorrelation(ratings, "ra.matrix", 50).getNeighborTable(), false);
+ *      double rating = recommender.predict(userID, movieID);
+ * <p>
+ * The main method keeps one warm instance and answers requests of other processes, see serve():
+ *      java -cp .:bin/ Recommender -trainingFile data/ra.train -matrixFile data/ra.matrix -kNN 50
+ * reads requests from stdin and writes the predictions to stdout, with -port 7070 it listens on the loopback
+ * interface instead.
+ */
+public class Recommender {
+
+    private final MovieHandler ratings;
+    private final boolean itemBased;
+    //Exactly one of them is set
+    private final NeighborTable neighborTable;
+    private final OnlineNeighbors onlineNeighbors;
+
+    private final float[] ratingAveragesOfUsersInternalIDs;
+    private final float[] ratingAveragesOfMoviesInternalIDs;
+
+    private final ThreadLocal<PredictionScratch> scratch = new ThreadLocal<PredictionScratch>() {
+        @Override
+        protected PredictionScratch initialValue() {
+            return new PredictionScratch();
+        }
+    };
+
+    /**
+     * @param ratings       the training ratings
+     * @param neighborTable the neighbors of every user (of every movie if itemBased), e.g. from
+     *                      PearsonsCorrelation.getNeighborTable()
+     * @param itemBased     whether the neighbors are movies
+     */
+    public Recommender(MovieHandler ratings, NeighborTable neighborTable, boolean itemBased) {
+        this(ratings, neighborTable, null, itemBased);
+    }
+
+    /**
+     * @param ratings         the training ratings
+     * @param onlineNeighbors computes the neighbors on demand, on the transposed ratings if itemBased
+     * @param itemBased       whether the neighbors are movies
+     */
+    public Recommender(MovieHandler ratings, OnlineNeighbors onlineNeighbors, boolean itemBased) {
+        this(ratings, null, onlineNeighbors, itemBased);
+    }
+
+    private Recommender(MovieHandler ratings, NeighborTable neighborTable, OnlineNeighbors onlineNeighbors,
+                        boolean itemBased) {
+        this.ratings = ratings;
+        this.neighborTable = neighborTable;
+        this.onlineNeighbors = onlineNeighbors;
+        this.itemBased = itemBased;
+
+        //Calculate and save all the deviations of users
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        float[] ratingValues = ratings.getRatingValues();
+        ratingAveragesOfUsersInternalIDs = new float[ratings.getNumUsers()];
+        for(int j=0; j<ratingAveragesOfUsersInternalIDs.length; j++){ //j is the internal user id
+            float sumOfUserRatings = 0;
+            for(int k = ratingOffsets[j]; k < ratingOffsets[j + 1]; k++){
+                sumOfUserRatings += ratingValues[k];
+            }
+            ratingAveragesOfUsersInternalIDs[j] = sumOfUserRatings / (ratingOffsets[j + 1] - ratingOffsets[j]);
+        }
+
+        //Same for the movies, the item based prediction centers on them
+        int[] raterOffsets = ratings.getMovieRaterOffsets();
+        float[] raterValues = ratings.getMovieRaterValues();
+        ratingAveragesOfMoviesInternalIDs = new float[ratings.getNumMovies()];
+        for(int m=0; m<ratingAveragesOfMoviesInternalIDs.length; m++){ //m is the internal movie id
+            float sumOfMovieRatings = 0;
+            for(int k = raterOffsets[m]; k < raterOffsets[m + 1]; k++){
+                sumOfMovieRatings += raterValues[k];
+            }
+            ratingAveragesOfMoviesInternalIDs[m] = sumOfMovieRatings / (raterOffsets[m + 1] - raterOffsets[m]);
+        }
+    }
+
+    /**
+     * Predict the rating of user with external id userID for movie with id movieID.
+     *
+     * @param userID  external id of user whose rating should be predict
+     * @param movieID movie for which the rating should be predicted
+     * @return the predicted rating, the average rating of the movie if the user has no ratings
+     */
+    public double predict(int userID, int movieID) {
+        int internalUserID = ratings.getInternalUserID(userID);
+        if (internalUserID < 0) {
+            return ratings.getMovieAverageRating(movieID);
+        }
+        if (itemBased) {
+            return predictRatingItemBased(internalUserID, movieID);
+        }
+        return predictRating(internalUserID, movieID);
+    }
+
+    /**
+     * Predicts several user/movie combinations at once, out[j] becomes predict(users[j], movies[j]).
+     * <p>
+     * Consecutive combinations of the same user are predicted together with predictRatings, which walks the
+     * neighbors of the user once for all of them. So sort the combinations by user where possible.
+     *
+     * @param users  external user ids
+     * @param movies movie ids, as many as users
+     * @param out    receives the predicted ratings, at least as many as users
+     */
+    public void predict(int[] users, int[] movies, double[] out) {
+        if (users.length != movies.length || out.length < users.length) {
+            throw new IllegalArgumentException("Got " + users.length + " users, " + movies.length + " movies and "
+                    + out.length + " outputs.");
+        }
+        int start = 0;
+        while (start < users.length) {
+            int end = start + 1;
+            while (end < users.length && users[end] == users[start]) {
+                end++;
+            }
+            if (end - start == 1) {
+                out[start] = predict(users[start], movies[start]);
+            } else {
+                double[] predictions = predictRatings(users[start], Arrays.copyOfRange(movies, start, end));
+                System.arraycopy(predictions, 0, out, start, end - start);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Predict the ratings of user with external id userID for several movies at once.
+     * <p>
+     * Instead of scanning the neighbors once per movie like predictRating, the ratings of every neighbor are
+     * walked once into dense per movie accumulators, after which all movies are answered from them. Neighbors
+     * are visited in the same order as in predictRating, so the results are equal to calling predict for
+     * every movie.
+     *
+     * @param userID   external id of user whose ratings should be predicted
+     * @param movieIDs movies for which the ratings should be predicted
+     * @return the predicted ratings, in the order of movieIDs
+     */
+    public double[] predictRatings(int userID, int[] movieIDs){
+        int internalUserID = ratings.getInternalUserID(userID);
+        if (itemBased || internalUserID < 0) {
+            //The neighbors differ per movie, nothing to share between the movies
+            double[] predictions = new double[movieIDs.length];
+            for (int j = 0; j < movieIDs.length; j++) {
+                predictions[j] = predict(userID, movieIDs[j]);
+            }
+            return predictions;
+        }
+
+        float userAverageRating = ratingAveragesOfUsersInternalIDs[internalUserID];
+        PredictionScratch scratch = this.scratch.get();
+
+        if (scratch.batchQueried == null) {
+            int maxMovieID = ratings.getMovieIDs().get(ratings.getNumMovies() - 1); //movies are sorted
+            scratch.batchRatingsOfNN = new double[maxMovieID + 1];
+            scratch.batchSumOfCorrelations = new double[maxMovieID + 1];
+            scratch.batchQueried = new boolean[maxMovieID + 1];
+            scratch.batchLastNeighbor = new int[maxMovieID + 1];
+        }
+
+        //Reset the accumulators of the asked movies only
+        for (int movieID : movieIDs) {
+            if (movieID >= 0 && movieID < scratch.batchQueried.length) {
+                scratch.batchQueried[movieID] = true;
+                scratch.batchRatingsOfNN[movieID] = 0;
+                scratch.batchSumOfCorrelations[movieID] = 0;
+                scratch.batchLastNeighbor[movieID] = -1;
+            }
+        }
+
+        NeighborTable neighbors = getNeighborTable(internalUserID);
+        int nnRow = getNeighborRow(internalUserID);
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+        for (int i = neighbors.start(nnRow); i < neighbors.end(nnRow); i++) {
+            int nnInternalID = neighbors.getNeighborID(i);
+            double similarity = neighbors.getSimilarity(i);
+            float nnAverageRating = ratingAveragesOfUsersInternalIDs[nnInternalID];
+
+            for (int k = ratingOffsets[nnInternalID]; k < ratingOffsets[nnInternalID + 1]; k++) {
+                int movieID = ratingMovieIDs[k];
+                if (scratch.batchQueried[movieID] && scratch.batchLastNeighbor[movieID] != i) {
+                    double d1 = ratingValues[k] - nnAverageRating;
+                    scratch.batchRatingsOfNN[movieID] += similarity * d1;
+                    scratch.batchSumOfCorrelations[movieID] += Math.abs(similarity);
+                    scratch.batchLastNeighbor[movieID] = i;
+                }
+            }
+        }
+
+        double[] predictions = new double[movieIDs.length];
+        for (int j = 0; j < movieIDs.length; j++) {
+            int movieID = movieIDs[j];
+            if (movieID >= 0 && movieID < scratch.batchQueried.length) {
+                predictions[j] = finishPrediction(userAverageRating, scratch.batchRatingsOfNN[movieID],
+                        scratch.batchSumOfCorrelations[movieID]);
+            } else {
+                //Movie not in the training data, no neighbor rated it
+                predictions[j] = finishPrediction(userAverageRating, 0, 0);
+            }
+        }
+
+        for (int movieID : movieIDs) {
+            if (movieID >= 0 && movieID < scratch.batchQueried.length) {
+                scratch.batchQueried[movieID] = false;
+            }
+        }
+        return predictions;
+    }
+
+    //Marks the movies of the user in PredictionScratch.recommendLastNeighbor
+    private static final int RATED = -2;
+
+    /**
+     * Recommends the n movies with the highest predicted rating among the movies the user has not rated.
+     * <p>
+     * User based the ratings of all neighbors are walked once into dense per movie accumulators, like in
+     * predictRatings but for every movie at once, and every movie gets the rating predict() would give it.
+     * Item based the neighbors belong to the predicted movie, so every movie the user has not rated is predicted
+     * on its own. Either way only movies rated by a neighbor are recommended, the other movies would just get
+     * an average rating. The best n are kept in a bounded heap.
+     *
+     * @param userID external id of user to recommend movies to
+     * @param n      number of movies to recommend
+     * @return at most n movies with their predicted rating, best first (ties on the lowest movie id), none for
+     * unknown users
+     */
+    public List<MovieRating> recommend(int userID, int n) {
+        List<MovieRating> recommendations = new ArrayList<MovieRating>();
+        int internalUserID = ratings.getInternalUserID(userID);
+        if (internalUserID < 0 || n < 1) {
+            return recommendations;
+        }
+
+        int numMovies = ratings.getNumMovies();
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+        PredictionScratch scratch = this.scratch.get();
+        if (scratch.recommendLastNeighbor == null) {
+            scratch.recommendRatingsOfNN = new double[numMovies];
+            scratch.recommendSumOfCorrelations = new double[numMovies];
+            scratch.recommendLastNeighbor = new int[numMovies];
+            scratch.recommendTouched = new int[numMovies];
+            Arrays.fill(scratch.recommendLastNeighbor, -1);
+        }
+        //All indexed by internal movie ID
+        double[] ratingsOfNN = scratch.recommendRatingsOfNN;
+        double[] sumOfCorrelations = scratch.recommendSumOfCorrelations;
+        int[] lastNeighbor = scratch.recommendLastNeighbor;
+
+        //Movies the user rated are never recommended
+        for (int k = ratingOffsets[internalUserID]; k < ratingOffsets[internalUserID + 1]; k++) {
+            lastNeighbor[ratings.getInternalMovieID(ratingMovieIDs[k])] = RATED;
+        }
+
+        RecommendationHeap heap = new RecommendationHeap(Math.min(n, numMovies));
+        if (itemBased) {
+            for (int m = 0; m < numMovies; m++) {
+                if (lastNeighbor[m] != RATED) {
+                    double prediction = predictFromItemNeighbors(internalUserID, m);
+                    if (!Double.isNaN(prediction)) {
+                        heap.offer(m, prediction);
+                    }
+                }
+            }
+        } else {
+            NeighborTable neighbors = getNeighborTable(internalUserID);
+            int nnRow = getNeighborRow(internalUserID);
+            int touched = 0;
+            for (int i = neighbors.start(nnRow); i < neighbors.end(nnRow); i++) {
+                int nnInternalID = neighbors.getNeighborID(i);
+                double similarity = neighbors.getSimilarity(i);
+                float nnAverageRating = ratingAveragesOfUsersInternalIDs[nnInternalID];
+
+                for (int k = ratingOffsets[nnInternalID]; k < ratingOffsets[nnInternalID + 1]; k++) {
+                    int m = ratings.getInternalMovieID(ratingMovieIDs[k]);
+                    int last = lastNeighbor[m];
+                    //A neighbor that rated a movie twice only counts once
+                    if (last == RATED || last == i) {
+                        continue;
+                    }
+                    if (last == -1) {
+                        scratch.recommendTouched[touched++] = m;
+                        ratingsOfNN[m] = 0;
+                        sumOfCorrelations[m] = 0;
+                    }
+                    double d1 = ratingValues[k] - nnAverageRating;
+                    ratingsOfNN[m] += similarity * d1;
+                    sumOfCorrelations[m] += Math.abs(similarity);
+                    lastNeighbor[m] = i;
+                }
+            }
+
+            float userAverageRating = ratingAveragesOfUsersInternalIDs[internalUserID];
+            for (int t = 0; t < touched; t++) {
+                int m = scratch.recommendTouched[t];
+                if (sumOfCorrelations[m] != 0) {
+                    heap.offer(m, finishPrediction(userAverageRating, ratingsOfNN[m], sumOfCorrelations[m]));
+                }
+                lastNeighbor[m] = -1;
+            }
+        }
+
+        for (int k = ratingOffsets[internalUserID]; k < ratingOffsets[internalUserID + 1]; k++) {
+            lastNeighbor[ratings.getInternalMovieID(ratingMovieIDs[k])] = -1;
+        }
+
+        int[] movies = new int[heap.size()];
+        double[] predictions = new double[heap.size()];
+        int count = heap.drainSorted(movies, predictions);
+        List<Integer> movieIDs = ratings.getMovieIDs();
+        for (int j = 0; j < count; j++) {
+            recommendations.add(new MovieRating(movieIDs.get(movies[j]), predictions[j]));
+        }
+        return recommendations;
+    }
+
+    MovieHandler getRatings() {
+        return ratings;
+    }
+
+    //The OnlineNeighbors of the recommender, null if the neighbors come from a table
+    OnlineNeighbors getOnlineNeighbors() {
+        return onlineNeighbors;
+    }
+
+    /**
+     * User based prediction from the neighbors of the user that rated the movie.
+     *
+     * @param internalUserID internal id of user whose rating should be predict
+     * @param movieID movie for which the rating should be predicted
+     * @return the predicted rating
+     */
+    private double predictRating(int internalUserID, int movieID){
+        double ratingsOfNN = 0;
+        double sumOfCorrelations = 0;
+
+        NeighborTable neighbors = getNeighborTable(internalUserID);
+        int nnRow = getNeighborRow(internalUserID);
+        int nnStart = neighbors.start(nnRow);
+        int nnEnd = neighbors.end(nnRow);
+
+        //Users that rated the movie, from the inverted index of the MovieHandler
+        int internalMovieID = ratings.getInternalMovieID(movieID);
+        int ratersStart = 0;
+        int ratersEnd = 0;
+        if (internalMovieID >= 0) {
+            ratersStart = ratings.getMovieRaterOffsets()[internalMovieID];
+            ratersEnd = ratings.getMovieRaterOffsets()[internalMovieID + 1];
+        }
+        int[] raterUserIDs = ratings.getMovieRaterUserIDs();
+        float[] raterValues = ratings.getMovieRaterValues();
+        PredictionScratch scratch = this.scratch.get();
+
+        //Intersect the neighbors with the raters, iterating the smaller side. Either way the sums are accumulated
+        //in the order of the neighbor list, so the result does not depend on the side that was picked.
+        if (ratersEnd - ratersStart < nnEnd - nnStart) {
+            int matched = matchRatersToNeighbors(scratch, nnRow, neighbors, raterUserIDs,
+                    ratersStart, ratersEnd);
+            for (int m = 0; m < matched; m++) {
+                int position = nnStart + (int) (scratch.matchedRaters[m] >>> 32);
+                int k = (int) scratch.matchedRaters[m];
+                double similarity = neighbors.getSimilarity(position);
+                double d1 = raterValues[k] - ratingAveragesOfUsersInternalIDs[neighbors.getNeighborID(position)];
+                ratingsOfNN += similarity * d1;
+                sumOfCorrelations += Math.abs(similarity);
+            }
+        } else {
+            for(int i=nnStart; i<nnEnd; i++){
+
+                //get the ith NN
+                int nnInternalID = neighbors.getNeighborID(i);
+
+                //Check if neighbour has rated this movie
+                int k = findRater(raterUserIDs, ratersStart, ratersEnd, nnInternalID);
+                if (k >= 0) {
+                    double similarity = neighbors.getSimilarity(i);
+                    double d1 = raterValues[k] - ratingAveragesOfUsersInternalIDs[nnInternalID];
+                    ratingsOfNN += similarity * d1;
+                    sumOfCorrelations += Math.abs(similarity);
+                }
+            }
+        }
+
+        return finishPrediction(ratingAveragesOfUsersInternalIDs[internalUserID], ratingsOfNN, sumOfCorrelations);
+    }
+
+    /**
+     * Item based version of predictRating: the neighbors are the movies most similar to the movie, from a
+     * movie-movie matrix, and the prediction is made from the ratings the user gave to them. Like in the user
+     * based prediction the ratings are centered, here on the average rating of every movie:
+     *      prediction = avg(movie) + sum(sim(movie,n) * (rating of user for n - avg(n))) / sum(|sim(movie,n)|)
+     * summed over the neighbors n the user rated, and clamped the same way.
+     *
+     * @param internalUserID internal id of user whose rating should be predict
+     * @param movieID movie for which the rating should be predicted
+     * @return the predicted rating
+     */
+    private double predictRatingItemBased(int internalUserID, int movieID){
+        int internalMovieID = ratings.getInternalMovieID(movieID);
+        if (internalMovieID < 0) {
+            //Nobody rated the movie, so it has no neighbors either
+            return finishPrediction(ratingAveragesOfUsersInternalIDs[internalUserID], 0, 0);
+        }
+
+        double prediction = predictFromItemNeighbors(internalUserID, internalMovieID);
+        if (Double.isNaN(prediction)) {
+            //The user rated none of the neighbors
+            return finishPrediction(ratingAveragesOfMoviesInternalIDs[internalMovieID], 0, 0);
+        }
+        return prediction;
+    }
+
+    /**
+     * The item based prediction of predictRatingItemBased, or NaN if the user rated none of the neighbors of the
+     * movie.
+     */
+    private double predictFromItemNeighbors(int internalUserID, int internalMovieID){
+        double ratingsOfNN = 0;
+        double sumOfCorrelations = 0;
+
+        float[] userRatings = getItemRatings(scratch.get(), internalUserID);
+        NeighborTable neighbors = getNeighborTable(internalMovieID);
+        int nnRow = getNeighborRow(internalMovieID);
+        for (int i = neighbors.start(nnRow); i < neighbors.end(nnRow); i++) {
+            int nnInternalMovieID = neighbors.getNeighborID(i);
+            float userRating = userRatings[nnInternalMovieID];
+            //Check if the user has rated this neighbour
+            if (userRating >= 0) {
+                double similarity = neighbors.getSimilarity(i);
+                double d1 = userRating - ratingAveragesOfMoviesInternalIDs[nnInternalMovieID];
+                ratingsOfNN += similarity * d1;
+                sumOfCorrelations += Math.abs(similarity);
+            }
+        }
+
+        if (sumOfCorrelations == 0) {
+            return Double.NaN;
+        }
+        return finishPrediction(ratingAveragesOfMoviesInternalIDs[internalMovieID], ratingsOfNN, sumOfCorrelations);
+    }
+
+    /**
+     * Ratings of a user by internal movie ID, -1 for the movies the user did not rate. The array of the scratch
+     * space is only refilled when the user changes, test lines of the same user are consecutive.
+     */
+    private float[] getItemRatings(PredictionScratch scratch, int internalUserID){
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+        if (scratch.itemRatings == null) {
+            scratch.itemRatings = new float[ratings.getNumMovies()];
+            Arrays.fill(scratch.itemRatings, -1f);
+        }
+        if (scratch.itemRatingsUser != internalUserID) {
+            int previous = scratch.itemRatingsUser;
+            if (previous >= 0) {
+                for (int k = ratingOffsets[previous]; k < ratingOffsets[previous + 1]; k++) {
+                    scratch.itemRatings[ratings.getInternalMovieID(ratingMovieIDs[k])] = -1f;
+                }
+            }
+            for (int k = ratingOffsets[internalUserID]; k < ratingOffsets[internalUserID + 1]; k++) {
+                int internalMovieID = ratings.getInternalMovieID(ratingMovieIDs[k]);
+                //A movie rated more than once only counts with its first rating, like in the user based prediction
+                if (scratch.itemRatings[internalMovieID] < 0) {
+                    scratch.itemRatings[internalMovieID] = ratingValues[k];
+                }
+            }
+            scratch.itemRatingsUser = internalUserID;
+        }
+        return scratch.itemRatings;
+    }
+
+    /**
+     * The table holding the neighbors of a user: the neighbor table, or with OnlineNeighbors a table with only
+     * the neighbors of the user (computed if not cached). See getNeighborRow for the row.
+     * In the item based mode the same goes for the neighbors of a movie.
+     */
+    private NeighborTable getNeighborTable(int internalUserID){
+        if (onlineNeighbors != null) {
+            return onlineNeighbors.getNeighbors(internalUserID);
+        }
+        return neighborTable;
+    }
+
+    //Row of the table of getNeighborTable that holds the neighbors of the user
+    private int getNeighborRow(int internalUserID){
+        return onlineNeighbors != null ? 0 : internalUserID;
+    }
+
+    /**
+     * Turns the sums over the neighbors that rated a movie into a prediction, clamped to the rating range.
+     *
+     * @param userAverageRating average rating of the user
+     * @param ratingsOfNN       sum of similarity * (rating - neighbor average) over the neighbors
+     * @param sumOfCorrelations sum of |similarity| over the neighbors
+     * @return the predicted rating
+     */
+    private static double finishPrediction(float userAverageRating, double ratingsOfNN, double sumOfCorrelations){
+        double prediction;
+
+        if(sumOfCorrelations == 0) {
+            return userAverageRating;
+        }else{
+            prediction = userAverageRating + (ratingsOfNN/sumOfCorrelations);
+        }
+
+        if(prediction > 5){
+            return 5;
+        }
+
+        if(prediction < 0.5) {
+            return 0.5;
+        }
+
+        return prediction;
+
+    }
+
+    /**
+     * Scratch space of the predictions. Every thread has its own, so predictions can be made from several
+     * threads at once.
+     */
+    private static class PredictionScratch {
+        //Dense per movie accumulators of predictRatings, indexed by true movie ID
+        double[] batchRatingsOfNN;
+        double[] batchSumOfCorrelations;
+        //Movies asked for in the current batch
+        boolean[] batchQueried;
+        //Neighbor that last contributed to a movie, a neighbor that rated a movie twice only counts once
+        int[] batchLastNeighbor;
+
+        //Position of every internal user in the neighbor list of neighborPositionsUser, -1 if not a neighbor.
+        //Filled lazily and only refilled when the user changes, test lines of the same user are consecutive.
+        int[] neighborPositions;
+        int neighborPositionsUser = -1;
+        NeighborTable neighborPositionsTable;
+
+        //Matches found by matchRatersToNeighbors, (neighbor position << 32) | position in the inverted index
+        long[] matchedRaters = new long[16];
+
+        //Ratings of itemRatingsUser by internal movie ID, see getItemRatings
+        float[] itemRatings;
+        int itemRatingsUser = -1;
+
+        //Dense per movie accumulators of recommend, indexed by internal movie ID
+        double[] recommendRatingsOfNN;
+        double[] recommendSumOfCorrelations;
+        //Neighbor that last contributed to a movie, -1 if none did yet, RATED for the movies of the user
+        int[] recommendLastNeighbor;
+        //Movies some neighbor contributed to
+        int[] recommendTouched;
+    }
+
+    /**
+     * Finds the raters of a movie that are neighbors of a user.
+     * The matches are stored in scratch.matchedRaters sorted on their position in the neighbor list.
+     *
+     * @param scratch        scratch space of the calling thread
+     * @param internalUserID row of the neighbor table holding the neighbors
+     * @param neighbors      the neighbor table, positions are relative to the first neighbor of the row
+     * @param raterUserIDs   internal user IDs of the inverted index of the MovieHandler
+     * @param ratersStart    first position of the raters of the movie
+     * @param ratersEnd      last position (exclusive) of the raters of the movie
+     * @return the number of matches
+     */
+    private int matchRatersToNeighbors(PredictionScratch scratch, int internalUserID, NeighborTable neighbors,
+                                       int[] raterUserIDs, int ratersStart, int ratersEnd) {
+        if (scratch.neighborPositions == null) {
+            scratch.neighborPositions = new int[ratings.getNumUsers()];
+            Arrays.fill(scratch.neighborPositions, -1);
+        }
+        if (scratch.neighborPositionsUser != internalUserID || scratch.neighborPositionsTable != neighbors) {
+            NeighborTable previous = scratch.neighborPositionsTable;
+            if (previous != null) {
+                for (int i = previous.start(scratch.neighborPositionsUser); i < previous.end(scratch.neighborPositionsUser); i++) {
+                    scratch.neighborPositions[previous.getNeighborID(i)] = -1;
+                }
+            }
+            int nnStart = neighbors.start(internalUserID);
+            for (int i = nnStart; i < neighbors.end(internalUserID); i++) {
+                scratch.neighborPositions[neighbors.getNeighborID(i)] = i - nnStart;
+            }
+            scratch.neighborPositionsUser = internalUserID;
+            scratch.neighborPositionsTable = neighbors;
+        }
+
+        if (scratch.matchedRaters.length < ratersEnd - ratersStart) {
+            scratch.matchedRaters = new long[ratersEnd - ratersStart];
+        }
+        int matched = 0;
+        for (int k = ratersStart; k < ratersEnd; k++) {
+            int position = scratch.neighborPositions[raterUserIDs[k]];
+            if (position >= 0) {
+                scratch.matchedRaters[matched++] = ((long) position << 32) | k;
+            }
+        }
+        Arrays.sort(scratch.matchedRaters, 0, matched);
+
+        //A user that rated the movie more than once only counts with its first rating, like in the neighbor scan
+        int unique = 0;
+        for (int m = 0; m < matched; m++) {
+            if (unique == 0 || (scratch.matchedRaters[unique - 1] >>> 32) != (scratch.matchedRaters[m] >>> 32)) {
+                scratch.matchedRaters[unique++] = scratch.matchedRaters[m];
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Binary search of a user in the (sorted) raters of a movie.
+     *
+     * @return the first position of the user in the inverted index, or -1 if the user did not rate the movie
+     */
+    private static int findRater(int[] raterUserIDs, int ratersStart, int ratersEnd, int internalUserID) {
+        int k = Arrays.binarySearch(raterUserIDs, ratersStart, ratersEnd, internalUserID);
+        if (k < 0) {
+            return -1;
+        }
+        while (k > ratersStart && raterUserIDs[k - 1] == internalUserID) {
+            k--;
+        }
+        return k;
+    }
+
+    /**
+     * Answers prediction requests, one request per line, until the end of the input:
+     *      request:  userID movieID [userID movieID ...]
+     *      response: prediction [prediction ...]
+     * The pairs of a request are predicted at once with predict(int[], int[], double[]) and the response holds
+     * the predictions in the same order. Recommendations are asked with
+     *      request:  top userID n
+     *      response: movieID:prediction [movieID:prediction ...]
+     * holding the movies of recommend(userID, n), best first. A request that can't be parsed gets the response "ERROR" followed by
+     * the reason. The output is only flushed when no more input is buffered, so a caller can write many requests
+     * before reading the responses.
+     *
+     * @param in  the requests
+     * @param out the responses
+     */
+    void serve(Reader in, Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        BufferedWriter writer = new BufferedWriter(out);
+        int[] users = new int[16];
+        int[] movies = new int[16];
+        double[] predictions = new double[16];
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens.length == 1 && tokens[0].isEmpty()) {
+                //Empty line, nothing to answer
+                continue;
+            }
+            response.setLength(0);
+            if (tokens[0].equals("top")) {
+                try {
+                    if (tokens.length != 3) {
+                        throw new NumberFormatException("expected top userID n");
+                    }
+                    List<MovieRating> recommendations = recommend(Integer.parseInt(tokens[1]),
+                            Integer.parseInt(tokens[2]));
+                    for (int r = 0; r < recommendations.size(); r++) {
+                        if (r > 0) {
+                            response.append(' ');
+                        }
+                        response.append(recommendations.get(r).getMovieID()).append(':')
+                                .append(recommendations.get(r).getRating());
+                    }
+                } catch (NumberFormatException e) {
+                    response.setLength(0);
+                    response.append("ERROR ").append(e.getMessage());
+                }
+            } else if (tokens.length % 2 != 0) {
+                response.append("ERROR expected pairs of userID movieID");
+            } else {
+                int numPairs = tokens.length / 2;
+                if (numPairs > users.length) {
+                    users = new int[numPairs];
+                    movies = new int[numPairs];
+                    predictions = new double[numPairs];
+                }
+                try {
+                    for (int p = 0; p < numPairs; p++) {
+                        users[p] = Integer.parseInt(tokens[2 * p]);
+                        movies[p] = Integer.parseInt(tokens[2 * p + 1]);
+                    }
+                    predict(Arrays.copyOf(users, numPairs), Arrays.copyOf(movies, numPairs), predictions);
+                    for (int p = 0; p < numPairs; p++) {
+                        if (p > 0) {
+                            response.append(' ');
+                        }
+                        response.append(predictions[p]);
+                    }
+                } catch (NumberFormatException e) {
+                    response.setLength(0);
+                    response.append("ERROR ").append(e.getMessage());
+                }
+            }
+            writer.write(response.toString());
+            writer.newLine();
+            if (!reader.ready()) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+    }
+
+    public static void main(String[] args) {
+
+        String trainingFile = "";
+        String matrixFile = null;
+        int kNN = 1000;
+        boolean itemBased = false;
+        boolean onlinePearson = false;
+        int minCommonRatedMovies = 1;
+        boolean precomputedMeans = false;
+        int neighborCacheSize = 10000;
+        boolean useSnapshot = false;
+        boolean offHeapNeighbors = false;
+        int port = 0;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if(arg.equals("-trainingFile")) {
+                trainingFile = args[i+1];
+            } else if(arg.equals("-matrixFile")) {
+                matrixFile = args[i+1];
+            } else if(arg.equals("-kNN")){
+                kNN = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-itemBased")) {
+                itemBased = args[i+1].equals("true");
+            } else if(arg.equals("-onlinePearson")) {
+                onlinePearson = args[i+1].equals("true");
+            } else if(arg.equals("-minCommonRatedMovies")){
+                minCommonRatedMovies = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-precomputedMeans")){
+                precomputedMeans = args[i+1].equals("true");
+            } else if(arg.equals("-neighborCacheSize")){
+                neighborCacheSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-snapshot")){
+                useSnapshot = args[i+1].equals("true");
+            } else if(arg.equals("-offHeapNeighbors")){
+                offHeapNeighbors = args[i+1].equals("true");
+            } else if(arg.equals("-port")){
+                port = Integer.parseInt(args[i+1]);
+                if (port < 1 || port > 65535) {
+                    System.out.println("Possible port values are 1 to 65535.");
+                    System.out.println("Program exiting...");
+                    System.exit(1);
+                }
+            }
+            // ADD ADDITIONAL PARAMETERS HERE //
+            i += 2;
+        }
+
+        //Without a port stdout carries the responses, everything else is printed on stderr
+        PrintStream responses = System.out;
+        if (port == 0) {
+            System.setOut(System.err);
+        }
+
+        MovieHandler ratings = new MovieHandler(trainingFile, useSnapshot);
+        final Recommender recommender = open(ratings, matrixFile, kNN, itemBased, onlinePearson,
+                minCommonRatedMovies, precomputedMeans, neighborCacheSize, offHeapNeighbors);
+
+        try {
+            if (port == 0) {
+                System.out.println("Reading requests from stdin.");
+                recommender.serve(new InputStreamReader(System.in, StandardCharsets.US_ASCII),
+                        new OutputStreamWriter(responses, StandardCharsets.US_ASCII));
+                return;
+            }
+
+            //One thread per connection, all of them share the recommender
+            ExecutorService pool = Executors.newCachedThreadPool();
+            try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+                System.out.println("Listening on " + server.getInetAddress().getHostAddress() + ":" + port + ".");
+                while (true) {
+                    final Socket socket = server.accept();
+                    pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try (Socket connection = socket) {
+                                recommender.serve(
+                                        new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII),
+                                        new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.US_ASCII));
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } catch (IOException e) {
+            System.out.println("Exception while serving requests");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Builds a recommender the way the command line options of the MovieRunner and the main method describe.
+     *
+     * @param ratings              the training ratings
+     * @param matrixFile           the correlation matrix, not used with onlinePearson
+     * @param kNN                  number of NN to be considered
+     * @param itemBased            whether the matrix is a movie-movie matrix
+     * @param onlinePearson        compute the neighbors on demand instead of reading the matrix
+     * @param minCommonRatedMovies see OnlineNeighbors
+     * @param precomputedMeans     see OnlineNeighbors
+     * @param neighborCacheSize    see OnlineNeighbors
+     * @param offHeapNeighbors     keep the neighbors read from the matrix off heap, see NeighborTable
+     * @return the recommender
+     */
+    static Recommender open(MovieHandler ratings, String matrixFile, int kNN, boolean itemBased,
+                            boolean onlinePearson, int minCommonRatedMovies, boolean precomputedMeans,
+                            int neighborCacheSize, boolean offHeapNeighbors) {
+        if (onlinePearson) {
+            //No matrix file, the neighbors of every user are computed the first time the user is predicted.
+            //Item based the neighbors are computed on the transposed ratings, i.e. the "users" are the movies
+            OnlineNeighbors onlineNeighbors = new OnlineNeighbors(itemBased ? ratings.transpose() : ratings, kNN,
+                    minCommonRatedMovies, precomputedMeans, neighborCacheSize);
+            return new Recommender(ratings, onlineNeighbors, itemBased);
+        }
+
+        PearsonsCorrelation similarities = new PearsonsCorrelation(ratings, matrixFile, kNN, offHeapNeighbors);
+        NeighborTable neighborTable = similarities.getNeighborTable();
+        int expectedRows = itemBased ? ratings.getNumMovies() : ratings.getNumUsers();
+        if (neighborTable == null || neighborTable.getNumUsers() != expectedRows) {
+            System.out.println("The matrix has " + (neighborTable == null ? 0 : neighborTable.getNumUsers())
+                    + " rows, but " + expectedRows + (itemBased ? " movies" : " users") + " are in the training file.");
+            if (itemBased) {
+                System.out.println("Compute the matrix with PearsonsCorrelation -itemBased true.");
+            }
+            System.out.println("Program exiting...");
+            System.exit(1);
+        }
+        return new Recommender(ratings, neighborTable, itemBased);
+    }
+
+}
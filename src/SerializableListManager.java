@@ -6,6 +6,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.NonReadableChannelException;
 import java.util.Arrays;
+import java.util.concurrent.*;
 
 class SerializableListManager {
 
@@ -19,14 +20,78 @@ class SerializableListManager {
 
     private final static String SAVE_FILE_NAME = SAVE_DIRECTORY + SAVE_FILE_NAME_PREFIX;
 
+    //All lists spill to this one file, opened on the first spill
+    private SpillFile spillFile;
+
+    //Spilled elements are read back through this window (shared by all lists, lists are read one at a time),
+    //never the whole spilled part of a list at once
+    private final static int READ_WINDOW_SIZE = 1 << 16;
+    private short[] readWindow;
+    private myCustomArrayList readWindowOwner;
+    private int readWindowStart = 0;
+    private int readWindowLength = 0;
+
+    //The spilled elements of the next prefetchDepth lists are read on a background thread while the current row
+    //is computed, as long as at most prefetchMemory bytes are prefetched and not yet read
+    private int prefetchDepth = 0;
+    private long prefetchMemory = 0;
+    private long prefetchedBytes = 0;
+    private int nextListToPrefetch = 0;
+    private ExecutorService prefetcher;
+
+    //Statistics, all in bytes
+    private long residentBytes = 0;
+    private long peakResidentBytes = 0;
+    private long bytesSpilled = 0;
+    private long bytesReread = 0;
+
 
     SerializableListManager(int numOfLists, int resize_constant) {
+        this(numOfLists, resize_constant, 0);
+    }
+
+    /**
+     * @param numOfLists      number of lists, list i holds at most i elements
+     * @param resize_constant initial number of elements of every list
+     * @param memoryBudget    bytes the lists may keep in memory (arrays and read window), lists spill to disk
+     *                        when it is used up. With 0 the lists only grow into memory freed by deleteList.
+     */
+    SerializableListManager(int numOfLists, int resize_constant, long memoryBudget) {
+        this(numOfLists, resize_constant, memoryBudget, 0, 0);
+    }
+
+    /**
+     * @param numOfLists      number of lists, list i holds at most i elements
+     * @param resize_constant initial number of elements of every list
+     * @param memoryBudget    bytes the lists may keep in memory (arrays and read window), lists spill to disk
+     *                        when it is used up. With 0 the lists only grow into memory freed by deleteList.
+     * @param prefetchDepth   when list i is deleted, the spilled elements of lists i+1 ... i+prefetchDepth are read
+     *                        in the background, 0 disables prefetching
+     * @param prefetchMemory  at most this many bytes are prefetched and not yet deleted, on top of memoryBudget
+     */
+    SerializableListManager(int numOfLists, int resize_constant, long memoryBudget, int prefetchDepth,
+                            long prefetchMemory) {
         deleteAllFilesMatchingPrefix();
-        this.RESIZE_CONSTANT = resize_constant;
+        this.prefetchDepth = prefetchDepth;
+        this.prefetchMemory = prefetchMemory;
         myList = new myCustomArrayList[numOfLists];
 
+        if(memoryBudget > 0) {
+            //Shrink the initial arrays if they don't fit in the budget, at least one element per list though
+            long budgetElements = memoryBudget / 2 - READ_WINDOW_SIZE;
+            resize_constant = (int) Math.max(1, Math.min(resize_constant, budgetElements / Math.max(1, numOfLists)));
+        }
+        this.RESIZE_CONSTANT = resize_constant;
+
+        long initialElements = 0;
         for(int i=0; i<myList.length; i++) {
-            myList[i] = new myCustomArrayList(i, i);
+            myList[i] = new myCustomArrayList(i);
+            initialElements += myList[i].array.length;
+        }
+        updateResidentBytes(2 * initialElements);
+
+        if(memoryBudget > 0) {
+            MEMORY_LEFT = Math.max(0, memoryBudget / 2 - READ_WINDOW_SIZE - initialElements);
         }
     }
 
@@ -41,7 +106,64 @@ class SerializableListManager {
     //This frees memory
     void deleteList(int listIndex){
         MEMORY_LEFT += myList[listIndex].array.length;
+        updateResidentBytes(-2L * myList[listIndex].array.length);
+        if(readWindowOwner == myList[listIndex]) {
+            readWindowOwner = null;
+        }
+        if(myList[listIndex].prefetched != null) {
+            prefetchedBytes -= 2L * myList[listIndex].prefetchedLength;
+            updateResidentBytes(-2L * myList[listIndex].prefetchedLength);
+        }
         myList[listIndex] = null;
+
+        //Lists are read in order, so the next ones are known, read them while this row is computed
+        prefetch(listIndex + 1);
+    }
+
+    //Starts prefetching lists firstList ... firstList+prefetchDepth-1 that are not prefetched yet
+    private void prefetch(int firstList){
+        if(prefetchDepth <= 0 || spillFile == null) {
+            return;
+        }
+        nextListToPrefetch = Math.max(nextListToPrefetch, firstList);
+        while(nextListToPrefetch < Math.min(myList.length, firstList + prefetchDepth)) {
+            if(!myList[nextListToPrefetch].startPrefetch()) {
+                //Out of prefetch memory, try again when the next list is deleted
+                return;
+            }
+            nextListToPrefetch++;
+        }
+    }
+
+    //Stops the background writer and deletes the spill file, call this once all lists are read
+    void close(){
+        if(prefetcher != null) {
+            prefetcher.shutdownNow();
+            prefetcher = null;
+        }
+        if(spillFile != null) {
+            spillFile.close();
+            spillFile = null;
+        }
+        System.out.println("Spilled " + bytesSpilled / (1 << 20) + " MB to disk, re-read " + bytesReread / (1 << 20)
+                + " MB, peak resident " + peakResidentBytes / (1 << 20) + " MB.");
+    }
+
+    long getBytesSpilled(){
+        return bytesSpilled;
+    }
+
+    long getBytesReread(){
+        return bytesReread;
+    }
+
+    long getPeakResidentBytes(){
+        return peakResidentBytes;
+    }
+
+    private void updateResidentBytes(long change){
+        residentBytes += change;
+        peakResidentBytes = Math.max(peakResidentBytes, residentBytes);
     }
 
     //This method deletes all files in a directory matching the PREFIX_FILE_NAME
@@ -71,9 +193,15 @@ class SerializableListManager {
         private int currentSize = 0;
         private int maxResize;
 
-        private final String saveFileName;
+        //Position in the spill file and index of the first element of every block saved to disk, in order
+        private long[] blockPositions = new long[0];
+        private int[] blockFirstElements = new int[0];
+        private int numBlocks = 0;
 
-        private short[] fullArray;
+        //The first prefetchedLength elements, read in the background by startPrefetch
+        private Future<short[]> prefetched;
+        private short[] prefetchedArray;
+        private int prefetchedLength = 0;
 
         // this is an index that counts how many cells are in the disk, alternativelly it can be seen
         // as the first index of the array that is in the RAM
@@ -81,10 +209,9 @@ class SerializableListManager {
         // The 6th 7th 8th 9th 10th element is in the RAM, then the arrayInMemoryStartCount will be equal to 6
         private int arrayInMemoryStartCount = 0;
 
-        myCustomArrayList(int maxResize, int saveID){
+        myCustomArrayList(int maxResize){
             array = new short[Math.min(maxResize, RESIZE_CONSTANT)];
             this.maxResize = maxResize;
-            this.saveFileName = SAVE_FILE_NAME+saveID+".tmp";
         }
 
         void add(short element){
@@ -100,6 +227,7 @@ class SerializableListManager {
 
                     short[] biggerArray = new short[newSize];
                     System.arraycopy(array, 0, biggerArray, 0, array.length);
+                    updateResidentBytes(2L * (newSize - array.length));
                     array = biggerArray;
                 }else{
                     //I cannot resize because I do not have any memory left
@@ -118,56 +246,124 @@ class SerializableListManager {
             //Its in the RAM
             if (index >= this.arrayInMemoryStartCount) {
                 return array[index - this.arrayInMemoryStartCount];
+            } else if (index < prefetchedLength) { //It was prefetched from the disk
+                if (prefetchedArray == null) {
+                    try {
+                        prefetchedArray = prefetched.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                        System.out.println("Couldn't deserialize");
+                        System.out.println(e);
+                        System.exit(-5);
+                    }
+                }
+                return prefetchedArray[index];
             } else { //It was in the disk
-                if (this.fullArray == null) {
-                    loadFromFile();
+                if (readWindowOwner != this || index < readWindowStart || index >= readWindowStart + readWindowLength) {
+                    loadFromFile(index);
                 }
-                return this.fullArray[index];
+                return readWindow[index - readWindowStart];
             }
         }
 
+        //The block is only copied to the write buffer of the spill file, a background thread writes it to disk
         void saveToFile(short[] array){
-            try{
-                File file = new File(this.saveFileName);
-                RandomAccessFile raf= new RandomAccessFile(file, "rw");
-                FileChannel fc = raf.getChannel();
-                // "channel.size" sets the pointer there, This appends the current file
-                ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, fc.size(), 2*array.length);
-                for(int i=0; i<array.length; i++){
-                    buffer.putShort(array[i]);
-                }
-                fc.close();
-                raf.close();
-            }catch (IOException e) {
-                System.out.println("Couldn't serialize!");
-                e.printStackTrace();
-                System.out.println(e);
-                System.exit(-4);
+            if(spillFile == null) {
+                spillFile = new SpillFile(SAVE_FILE_NAME + ".spill");
+            }
+            if(numBlocks == blockPositions.length) {
+                blockPositions = Arrays.copyOf(blockPositions, Math.max(4, 2 * numBlocks));
+                blockFirstElements = Arrays.copyOf(blockFirstElements, Math.max(4, 2 * numBlocks));
             }
+            blockPositions[numBlocks] = spillFile.append(array, array.length);
+            blockFirstElements[numBlocks] = arrayInMemoryStartCount;
+            numBlocks++;
+            bytesSpilled += 2L * array.length;
         }
 
-        //This is supposed to only be called once per array by the program
-        void loadFromFile(){
-            try {
-                File file = new File(this.saveFileName);
-                FileInputStream in = new FileInputStream(file);
-                FileChannel fc = in.getChannel();
-                MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-                int arraySize = (int)fc.size()/2;
-                this.fullArray = new short[arraySize];
-                for(int i=0; i<arraySize; i++){
-                    this.fullArray[i] = buffer.getShort();
+        //Submits the read of the spilled elements that are already handed to the writer thread of the spill file
+        //(the rest is still in its buffer and is read when needed), returns false if out of prefetch memory
+        boolean startPrefetch(){
+            //Only whole blocks, up to the part of the file that is handed to the writer thread
+            long handedOff = spillFile.getHandedOffPosition();
+            int blocks = 0;
+            while(blocks < numBlocks && blockEnd(blocks) <= handedOff) {
+                blocks++;
+            }
+            final int length = blocks < numBlocks ? blockFirstElements[blocks] : arrayInMemoryStartCount;
+            if(length == 0) {
+                return true;
+            }
+            if(prefetchedBytes + 2L * length > prefetchMemory) {
+                return false;
+            }
+            prefetchedBytes += 2L * length;
+            updateResidentBytes(2L * length);
+            bytesReread += 2L * length;
+
+            //The block arrays are only changed by the compute thread, the prefetch task gets its own copy
+            final long[] positions = Arrays.copyOf(blockPositions, blocks);
+            final int[] firstElements = Arrays.copyOf(blockFirstElements, blocks);
+            final SpillFile file = spillFile;
+            if(prefetcher == null) {
+                prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "spill-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            prefetchedLength = length;
+            prefetched = prefetcher.submit(new Callable<short[]>() {
+                @Override
+                public short[] call() {
+                    short[] elements = new short[length];
+                    for(int b=0; b<positions.length; b++){
+                        int end = b + 1 < positions.length ? firstElements[b + 1] : length;
+                        file.readWritten(positions[b], elements, firstElements[b], end - firstElements[b]);
+                    }
+                    return elements;
                 }
+            });
+            return true;
+        }
 
-                file.delete();
-                in.close();
-                fc.close();
-            }catch(IOException e){
-                e.printStackTrace();
-                System.out.println("Couldn't deserialize");
-                System.out.println(e);
-                System.exit(-5);
+        //Position in the spill file right after block b
+        private long blockEnd(int b){
+            int end = b + 1 < numBlocks ? blockFirstElements[b + 1] : arrayInMemoryStartCount;
+            return blockPositions[b] + 2L * (end - blockFirstElements[b]);
+        }
+
+        //Fills the read window with the spilled elements starting at index, the elements are read in order so
+        //every element is normally read from disk only once
+        void loadFromFile(int index){
+            if(readWindow == null) {
+                readWindow = new short[READ_WINDOW_SIZE];
+                updateResidentBytes(2L * READ_WINDOW_SIZE);
+            }
+            int length = Math.min(READ_WINDOW_SIZE, arrayInMemoryStartCount - index);
+
+            //Last block starting at or before index
+            int block = Arrays.binarySearch(blockFirstElements, 0, numBlocks, index);
+            if(block < 0) {
+                block = -block - 2;
+            }
+            int filled = 0;
+            while(filled < length) {
+                int element = index + filled;
+                int blockEnd = block + 1 < numBlocks ? blockFirstElements[block + 1] : arrayInMemoryStartCount;
+                int count = Math.min(length - filled, blockEnd - element);
+                spillFile.read(blockPositions[block] + 2L * (element - blockFirstElements[block]), readWindow, filled, count);
+                filled += count;
+                block++;
             }
+
+            readWindowOwner = this;
+            readWindowStart = index;
+            readWindowLength = length;
+            bytesReread += 2L * length;
         }
 
     }
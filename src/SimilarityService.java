@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pearson correlations of single user pairs, for code that asks for ad-hoc pairs from many threads at once
+ * (PearsonsCorrelation.get(i, j) computes every pair again).
+ * <p>
+ * Correlations are computed with the look up array kernel of PearsonsCorrelation, every thread has its own look up
+ * array. Results are cached on the unordered pair, so get(i, j) and get(j, i) share an entry. The cache is split
+ * in stripes, each an LRU map with its own lock, so threads asking for different pairs rarely wait on each other.
+ * <p>
+ * Usage:
+ *      SimilarityService service = new SimilarityService(ratings, 3, 1000000);
+ *      double cor = service.get(userID1, userID2);
+ */
+class SimilarityService {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final MovieHandler ratings;
+    private final PearsonsCorrelation kernels = new PearsonsCorrelation();
+    private final int minCommonRatedMovies;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private final ThreadLocal<float[]> lookUpArrays;
+
+    /**
+     * @param ratings              the ratings
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param cacheSize            maximum number of cached pairs
+     */
+    SimilarityService(MovieHandler ratings, int minCommonRatedMovies, int cacheSize) {
+        this(ratings, minCommonRatedMovies, cacheSize, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param ratings              the ratings
+     * @param minCommonRatedMovies the least num of commonly rated movies to define a correlation between 2 users
+     * @param cacheSize            maximum number of cached pairs
+     * @param numStripes           number of independently locked parts of the cache, rounded up to a power of 2,
+     *                             fewer for a cache smaller than that
+     */
+    SimilarityService(MovieHandler ratings, int minCommonRatedMovies, int cacheSize, int numStripes) {
+        this.ratings = ratings;
+        this.minCommonRatedMovies = minCommonRatedMovies;
+
+        //Every stripe holds at least one pair, so a small cache gets fewer stripes to stay within cacheSize
+        int stripeCount = 1;
+        while (stripeCount < numStripes && 2 * (long) stripeCount <= cacheSize) {
+            stripeCount <<= 1;
+        }
+        this.stripeMask = stripeCount - 1;
+        this.stripes = new Stripe[stripeCount];
+        for (int s = 0; s < stripeCount; s++) {
+            stripes[s] = new Stripe(cacheSize / stripeCount);
+        }
+
+        final int maxMovieID = ratings.getMovieIDs().get(ratings.getNumMovies() - 1); //movies are sorted
+        this.lookUpArrays = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                float[] lookUpArray = new float[maxMovieID + 1];
+                Arrays.fill(lookUpArray, -1f);
+                return lookUpArray;
+            }
+        };
+    }
+
+    /**
+     * Returns the correlation between two users.
+     *
+     * @param userID1 true user id
+     * @param userID2 true user id
+     * @return the Pearson correlation, NaN if a user is unknown or they have less than minCommonRatedMovies
+     * commonly rated movies
+     */
+    double get(int userID1, int userID2) {
+        int i = ratings.getInternalUserID(userID1);
+        int j = ratings.getInternalUserID(userID2);
+        if (i < 0 || j < 0) {
+            return Double.NaN;
+        }
+        return getInternal(i, j);
+    }
+
+    /**
+     * Same as get, but for internal user IDs.
+     */
+    double getInternal(int i, int j) {
+        long key = i < j ? ((long) i << 32) | j : ((long) j << 32) | i;
+        Stripe stripe = stripes[stripeOf(key)];
+        synchronized (stripe) {
+            Double cached = stripe.get(key);
+            if (cached != null) {
+                cacheHits.increment();
+                return cached;
+            }
+        }
+        cacheMisses.increment();
+
+        //Computed outside of the lock, so a slow pair does not hold up the other pairs of the stripe
+        double cor = compute(i, j);
+        synchronized (stripe) {
+            stripe.put(key, cor);
+        }
+        return cor;
+    }
+
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    private double compute(int i, int j) {
+        int[] ratingOffsets = ratings.getRatingOffsets();
+        int[] ratingMovieIDs = ratings.getRatingMovieIDs();
+        float[] ratingValues = ratings.getRatingValues();
+
+        //Correlation(X,Y) = Correlation(Y,X), the user with the fewest ratings goes in the look up array
+        int x = i;
+        int y = j;
+        if (ratingOffsets[x + 1] - ratingOffsets[x] > ratingOffsets[y + 1] - ratingOffsets[y]) {
+            x = j;
+            y = i;
+        }
+
+        float[] lookUpArray = lookUpArrays.get();
+        for (int k = ratingOffsets[x]; k < ratingOffsets[x + 1]; k++) {
+            lookUpArray[ratingMovieIDs[k]] = ratingValues[k];
+        }
+        double cor = kernels.correlationFastLookUp(ratingOffsets[y], ratingOffsets[y + 1], ratingMovieIDs,
+                ratingValues, lookUpArray, -1f, minCommonRatedMovies);
+        //Set arr to original state
+        for (int k = ratingOffsets[x]; k < ratingOffsets[x + 1]; k++) {
+            lookUpArray[ratingMovieIDs[k]] = -1f;
+        }
+        return cor;
+    }
+
+    /**
+     * Part of the cache, an LRU map of at most maxSize pairs.
+     */
+    private static class Stripe extends LinkedHashMap<Long, Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    //Spreads the pairs of a user over all stripes
+    private int stripeOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & stripeMask;
+    }
+
+}
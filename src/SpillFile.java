@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One append-only file that receives all blocks spilled by a SerializableListManager.
+ * <p>
+ * Blocks are copied into one of two buffers, a full buffer is handed to a background writer thread which writes
+ * it with a single positional write while the other buffer is filled. The compute thread only waits when both
+ * buffers are on their way to disk. The file is grown in steps of PREALLOCATION_SIZE, not on every write.
+ * <p>
+ * append() returns the position of a block in the file, read() gives it back. A block that is still in a buffer
+ * is first written, so a read always sees the data. Space of blocks that were read is not reused, the file is
+ * deleted as a whole by close().
+ */
+class SpillFile {
+
+    //Size of each of the two write buffers
+    private static final int BUFFER_SIZE = 8 << 20;
+
+    //The file is grown in steps of this size
+    private static final long PREALLOCATION_SIZE = 256L << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+
+    //The buffer being filled by append() and the file position of its first byte
+    private ByteBuffer filling;
+    private long fillingPosition = 0;
+
+    //The other buffer, null while the writer thread has it
+    private ByteBuffer spare;
+
+    //Buffer handed to the writer thread and its file position, null if there is nothing to write
+    private ByteBuffer toWrite;
+    private long toWritePosition;
+
+    //Every byte before this position is on disk
+    private long writtenPosition = 0;
+    private long allocatedSize = 0;
+
+    private boolean closed = false;
+    private final Thread writer;
+
+    //Reused by the reads of every thread
+    private final ThreadLocal<ByteBuffer> readBuffers = new ThreadLocal<ByteBuffer>();
+
+    SpillFile(String fileName) {
+        this.file = new File(fileName);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+        } catch (IOException e) {
+            System.out.println("Couldn't open spill file!");
+            e.printStackTrace();
+            System.out.println(e);
+            System.exit(-4);
+        }
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "spill-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a block of shorts to the file.
+     *
+     * @param array  the shorts
+     * @param length number of shorts of the array to write
+     * @return the position of the block in the file
+     */
+    long append(short[] array, int length) {
+        long position = fillingPosition + filling.position();
+        int written = 0;
+        while (written < length) {
+            if (filling.remaining() < 2) {
+                handOff();
+            }
+            int count = Math.min(length - written, filling.remaining() / 2);
+            filling.asShortBuffer().put(array, written, count);
+            filling.position(filling.position() + 2 * count);
+            written += count;
+        }
+        return position;
+    }
+
+    /**
+     * Reads a block (or part of it) back.
+     *
+     * @param position file position of the first short to read
+     * @param array    receives the shorts
+     * @param offset   first index of the array to fill
+     * @param length   number of shorts to read
+     */
+    void read(long position, short[] array, int offset, int length) {
+        if (position + 2L * length > fillingPosition) {
+            //Part of it is still in the buffer being filled
+            handOff();
+        }
+        readWritten(position, array, offset, length);
+    }
+
+    /**
+     * Position up to which the data is handed to the writer thread, read() of data before it does not have to
+     * hand off the buffer being filled.
+     */
+    long getHandedOffPosition() {
+        return fillingPosition;
+    }
+
+    /**
+     * Like read(), but only for data before getHandedOffPosition(). Unlike read() this can be called from any
+     * thread, it just waits until the data is on disk.
+     */
+    void readWritten(long position, short[] array, int offset, int length) {
+        long end = position + 2L * length;
+        try {
+            synchronized (this) {
+                while (writtenPosition < end) {
+                    wait();
+                }
+            }
+            ByteBuffer buffer = readBuffers.get();
+            if (buffer == null || buffer.capacity() < 2 * length) {
+                buffer = ByteBuffer.allocate(2 * length);
+                readBuffers.set(buffer);
+            }
+            buffer.clear().limit(2 * length);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of spill file");
+                }
+            }
+            buffer.flip();
+            buffer.asShortBuffer().get(array, offset, length);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.out.println("Couldn't deserialize");
+            System.out.println(e);
+            System.exit(-5);
+        }
+    }
+
+    /**
+     * Stops the writer thread and deletes the file.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+            fc.close();
+            raf.close();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+    }
+
+    //Gives the buffer being filled to the writer thread and continues with the spare one
+    private void handOff() {
+        if (filling.position() == 0) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                while (spare == null) {
+                    wait();
+                }
+                filling.flip();
+                toWrite = filling;
+                toWritePosition = fillingPosition;
+                fillingPosition += filling.limit();
+                filling = spare;
+                spare = null;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(-4);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer buffer;
+            long position;
+            synchronized (this) {
+                while (toWrite == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (toWrite == null) {
+                    return;
+                }
+                buffer = toWrite;
+                position = toWritePosition;
+            }
+
+            long end = position + buffer.limit();
+            try {
+                if (end > allocatedSize) {
+                    allocatedSize = Math.max(end, allocatedSize + PREALLOCATION_SIZE);
+                    raf.setLength(allocatedSize);
+                }
+                while (buffer.hasRemaining()) {
+                    fc.write(buffer, position + buffer.position());
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't serialize!");
+                e.printStackTrace();
+                System.out.println(e);
+                System.exit(-4);
+            }
+
+            synchronized (this) {
+                buffer.clear();
+                writtenPosition = end;
+                toWrite = null;
+                spare = buffer;
+                notifyAll();
+            }
+        }
+    }
+
+}